@@ -1,7 +1,7 @@
 package org.jboss.tools.vpe.anyxpcom;
 
-import java.lang.reflect.Array;
-import java.lang.reflect.Proxy;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 
 import org.eclipse.swt.browser.Browser;
 import org.mozilla.interfaces.nsISupports;
@@ -12,19 +12,102 @@ import org.mozilla.xpcom.XPCOMException;
  * @author Denis Maliarevich (dmaliarevich)
  */
 public class AnyXPCOM {
+	private static final String NSI_ID_PREFIX = "nsiId="; //$NON-NLS-1$
+
 	public static <T extends nsISupports> T queryInterface(
 			nsISupports object,	Class<T> type) throws XPCOMException {
 		NumeratedNsi numeratedNsi = (NumeratedNsi)object;
-		return createProxy(numeratedNsi.getBrowser(), numeratedNsi.getNsiId(), type);
+		T result = createProxy(numeratedNsi.getBrowser(), numeratedNsi.getNsiId(), type);
+		NsiProxy handler = NsiProxy.getHandler(object);
+		if (handler != null) {
+			NsiProxy.getHandler(result).setOrigin(handler);
+		}
+		return result;
 	}
 	
 	/**
 	 * Get {@code browser} ready to work with {@link AnyXPCOM}'s methods
 	 */
 	public static void initBrowser(final Browser browser) {
-		browser.execute(
+		BrowserContext context = getContext(browser);
+		Object runtimeEpoch = browser.evaluate(getRuntimeScript(context.nextEpoch()));
+		context.runtimeInitialized(((Number) runtimeEpoch).intValue());
+	}
+
+	/**
+	 * Returns the script injecting the runtime into a document unless it
+	 * is there already. The script is a function body returning
+	 * the epoch of the runtime, which is {@code epoch} if it is injected.
+	 */
+	static String getRuntimeScript(int epoch) {
+		return
 			"if (!window.nsiArray) {" +
+				"window.nsiEpoch = " + epoch + ";" +
 				"window.nsiArray = [];" +
+				// generations of the slots of nsiArray, changed when a slot is
+				// released, so an object registered in it before is not found there
+				"window.nsiGens = [];" +
+				// ids of released slots of nsiArray, to be reused
+				"window.nsiFree = [];" +
+				// keys (ids and generations) of registered objects. Objects are
+				// tagged by a property only if there is no WeakMap, since it
+				// changes their shape.
+				"window.nsiIds = typeof WeakMap === 'function' ? new WeakMap() : {" +
+					"get: function(param) {" +
+						"return Object.prototype.hasOwnProperty.call(param, '__nsiId') ? param.__nsiId : undefined;" +
+					"}," +
+					"set: function(param, key) {" +
+						"try {" +
+							"Object.defineProperty(param, '__nsiId', {value: key, writable: true, configurable: true});" +
+						"} catch (e) {" +
+							"param.__nsiId = key;" +
+						"}" +
+					"}," +
+					"'delete': function(param) {" +
+						"delete param.__nsiId;" +
+					"}" +
+				"};" +
+				// drops the objects, but keeps their slots: they get the same
+				// ids when they are registered again
+				"window.evictNsi = function(ids) {" +
+					"for (var i = 0; i < ids.length; i++) {" +
+						"if (nsiArray[ids[i]]) {" +
+							"nsiArray[ids[i]] = null;" +
+						"}" +
+					"}" +
+				"};" +
+				"window.releaseNsi = function(ids) {" +
+					"for (var i = 0; i < ids.length; i++) {" +
+						"var id = ids[i];" +
+						"if (nsiArray[id] !== undefined) {" +
+							"if (nsiArray[id] !== null) {" +
+								"nsiIds['delete'](nsiArray[id]);" +
+							"}" +
+							"nsiArray[id] = undefined;" +
+							"nsiGens[id] = (nsiGens[id] + 1) % 0x400000;" +
+							"nsiFree.push(id);" +
+						"}" +
+					"}" +
+				"};" +
+				// returns the id of the object, registering it if needed
+				"window.idNsi = function(param) {" +
+					"var key = nsiIds.get(param);" +
+					"var id;" +
+					"if (key !== undefined) {" +
+						"id = key % 0x80000000;" +
+						"if (key === id + nsiGens[id] * 0x80000000) {" +
+							"nsiArray[id] = param;" + // it may be evicted
+							"return id;" +
+						"}" +
+					"}" +
+					"id = nsiFree.length > 0 ? nsiFree.pop() : nsiArray.length;" +
+					"if (nsiGens[id] === undefined) {" +
+						"nsiGens[id] = 0;" +
+					"}" +
+					"nsiArray[id] = param;" +
+					"nsiIds.set(param, id + nsiGens[id] * 0x80000000);" +
+					"return id;" +
+				"};" +
 				"window.convertNsi = function(param) {" +
 					"if(param !== null) {"+
 					   "if (typeof param === 'object' || typeof param === 'function') {"+ // in webkit typeof document.childNodes is 'function'
@@ -35,65 +118,306 @@ public class AnyXPCOM {
 					       "}"+
 					       "return nsiParam;"+
 					     "} else {"+
-					        "if (!param.hasOwnProperty('nsiId')) {"+
-					            "param.nsiId = nsiArray.length;"+
-					            "nsiArray[nsiArray.length] = param;"+
-					        "}"+
-					        "return 'nsiId=' + param.nsiId;"+
+					        "var id = idNsi(param);"+
+					        "return nsiJson ? new NsiHandle(id) : 'nsiId=' + id;"+
 					     "}"+
 					   "}" +
 					 "}"+    
 				   "return param;"+
+				"};" +
+				// JSON encoding of results, see WireFormat
+				"window.nsiJson = false;" +
+				"window.NsiHandle = function(id) {" +
+					"this.id = id;" +
+				"};" +
+				"window.quoteNsi = function(param) {" +
+					"return '\"' + param.replace(/[\\\\\"\\u0000-\\u001f\\u2028\\u2029]/g, function(c) {" +
+						"return '\\\\u' + ('000' + c.charCodeAt(0).toString(16)).slice(-4);" +
+					"}) + '\"';" +
+				"};" +
+				"window.encodeNsi = function(param) {" +
+					"if (param === null || param === undefined) {" +
+						"return 'null';" +
+					"}" +
+					"var type = typeof param;" +
+					"if (type === 'string') {" +
+						"return quoteNsi(param);" +
+					"} else if (type === 'number') {" +
+						"return isFinite(param) ? '' + param : '{\"n\":\"' + param + '\"}';" +
+					"} else if (type === 'boolean') {" +
+						"return '' + param;" +
+					"} else if (param instanceof NsiHandle) {" +
+						"return '{\"h\":' + param.id + '}';" +
+					"} else if (param.constructor === Array) {" +
+						"var items = [];" +
+						"for (var i = 0; i < param.length; i++) {" +
+							"items.push(encodeNsi(param[i]));" +
+						"}" +
+						"return '[' + items.join(',') + ']';" +
+					"}" +
+					"return encodeNsi(convertNsi(param));" +
+				"};" +
+				// binary transfer, see BinaryChannel
+				"window.nsiLittleEndian = typeof Uint16Array !== 'undefined'" +
+						" && new Uint8Array(new Uint16Array([1]).buffer)[0] === 1;" +
+				"window.bytesNsi = function(param) {" +
+					"if (param instanceof ArrayBuffer) {" +
+						"return new Uint8Array(param);" +
+					"} else if (param.buffer instanceof ArrayBuffer) {" + // typed arrays and DataView
+						"return new Uint8Array(param.buffer, param.byteOffset, param.byteLength);" +
+					"} else if (param.data && param.data.buffer instanceof ArrayBuffer) {" + // ImageData
+						"return bytesNsi(param.data);" +
+					"}" +
+					"return new Uint8Array(param);" +
+				"};" +
+				"window.packNsi = function(bytes, base64) {" +
+					"var chunks = [];" +
+					"for (var i = 0; i < bytes.length; i += 8192) {" +
+						"chunks.push(String.fromCharCode.apply(null, bytes.subarray(i, i + 8192)));" +
+					"}" +
+					"var packed = chunks.join('');" +
+					"return base64 ? btoa(packed) : packed;" +
+				"};" +
+				"window.unpackNsi = function(packed, base64) {" +
+					"var chars = base64 ? atob(packed) : packed;" +
+					"var bytes = new Uint8Array(chars.length);" +
+					"for (var i = 0; i < chars.length; i++) {" +
+						"bytes[i] = chars.charCodeAt(i);" +
+					"}" +
+					"return bytes;" +
+				"};" +
+				// drop the whole table with the document
+				"if (window.addEventListener) {" +
+					"window.addEventListener('unload', function() {" +
+						"window.nsiArray = window.nsiGens = window.nsiFree = window.nsiIds = null;" +
+					"}, false);" +
 				"}" +
-			"}");
+			"}" +
+			"return nsiEpoch;";
 	}
 
 	public static <T> T queryInterface(String jsExpression, Class<T> type, Browser browser) {
-		return convertFromNsi(browser.evaluate("return convertNsi(" + jsExpression + ")"), type, browser);
+		BrowserContext context = getContext(browser);
+		T result = convertFromNsi(context.evaluate("return convertNsi(" + jsExpression + ")"), type, browser);
+		if (result != null && context.isBounded()) {
+			NsiProxy handler = NsiProxy.getHandler(result);
+			if (handler != null) {
+				handler.setOrigin(jsExpression);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates the {@code jsExpression} and keeps its value as a string
+	 * in the browser, to be transferred by chunks.
+	 *
+	 * @return the staged string, or {@code null} if the value is
+	 * {@code null} or {@code undefined}
+	 * @see StagedString
+	 */
+	public static StagedString stageString(String jsExpression, Browser browser) {
+		return StagedString.stage(getContext(browser), jsExpression);
+	}
+
+	/**
+	 * Stages the value of the JS property {@code member} (like
+	 * {@code "innerHTML"}) of the {@code proxy} created by {@link AnyXPCOM}.
+	 *
+	 * @see #stageString(String, Browser)
+	 */
+	public static StagedString stageString(Object proxy, String member) {
+		NsiProxy handler = NsiProxy.getHandler(proxy);
+		if (handler == null) {
+			throw new IllegalArgumentException("Not a proxy: " + proxy); //$NON-NLS-1$
+		}
+		BrowserContext context = handler.checkEpoch();
+		StringBuilder expression = new StringBuilder();
+		handler.appendTarget(expression);
+		expression.append('.').append(member);
+		return StagedString.stage(context, expression.toString());
+	}
+
+	/**
+	 * Evaluates the {@code jsExpression} giving an array or an array-like
+	 * object (like {@code NodeList}), and returns a list of its elements
+	 * as proxies of the {@code type}. Unlike arrays returned by proxies,
+	 * the elements are registered in the browser and get their proxies
+	 * on first access.
+	 *
+	 * @return the list, or {@code null} if the value is {@code null}
+	 * or {@code undefined}
+	 * @see NsiList
+	 */
+	public static <T> NsiList<T> queryList(String jsExpression, Class<T> type, Browser browser) {
+		return NsiList.query(getContext(browser), jsExpression, type);
+	}
+
+	/**
+	 * Returns the list of the elements of the JS property {@code member}
+	 * (like {@code "childNodes"}) of the {@code proxy} created by
+	 * {@link AnyXPCOM}.
+	 *
+	 * @see #queryList(String, Class, Browser)
+	 */
+	public static <T> NsiList<T> queryList(Object proxy, String member, Class<T> type) {
+		NsiProxy handler = NsiProxy.getHandler(proxy);
+		if (handler == null) {
+			throw new IllegalArgumentException("Not a proxy: " + proxy); //$NON-NLS-1$
+		}
+		BrowserContext context = handler.checkEpoch();
+		StringBuilder expression = new StringBuilder();
+		handler.appendTarget(expression);
+		expression.append('.').append(member);
+		return NsiList.query(context, expression.toString(), type);
+	}
+
+	/**
+	 * Returns the channel transferring binary data of the {@code browser}.
+	 */
+	public static BinaryChannel binary(Browser browser) {
+		return getContext(browser).getBinaryChannel();
+	}
+
+	/**
+	 * Returns the asynchronous bridge of the {@code browser}. The method must
+	 * be called on the UI thread, but the bridge may be used from any thread.
+	 */
+	public static AsyncBridge async(Browser browser) {
+		return getContext(browser).getAsyncBridge();
+	}
+
+	/**
+	 * Opens a batch of the {@code browser}, see {@link BridgeBatch}.
+	 * The batch must be used and committed on the UI thread.
+	 */
+	public static BridgeBatch beginBatch(Browser browser) {
+		return getContext(browser).beginBatch();
+	}
+
+	/**
+	 * Executes the {@code script} by {@link Browser#execute(String)} after
+	 * the calls deferred for the {@code browser}. Results of reads shared by
+	 * {@link BrowserContext#setReadDedup(boolean) read deduplication}
+	 * are dropped, because the script may change the document.
+	 */
+	public static boolean execute(String script, Browser browser) {
+		BrowserContext context = getContext(browser);
+		context.flush();
+		context.invalidateReads();
+		return browser.execute(script);
+	}
+
+	/**
+	 * Evaluates the {@code script} by {@link Browser#evaluate(String)}
+	 * like {@link #execute(String, Browser)}, and returns its result.
+	 */
+	public static Object evaluate(String script, Browser browser) {
+		BrowserContext context = getContext(browser);
+		context.flush();
+		context.invalidateReads();
+		return browser.evaluate(script);
+	}
+
+	/**
+	 * Returns the {@link BrowserContext} holding the settings
+	 * of the {@code browser}, e.g. {@link BrowserContext#setDeferredWrites(boolean)}.
+	 */
+	public static BrowserContext getContext(Browser browser) {
+		return BrowserContext.get(browser);
 	}
 	
+	/**
+	 * Returns a proxy of the {@code type} for the object with the {@code id}.
+	 * While a proxy is reachable, the same instance is returned for the same
+	 * id and type.
+	 */
 	@SuppressWarnings("unchecked")
-	private static <T> T createProxy(Browser browser, int id, Class<T> type) {
-		//System.out.println(String.format("id = %s, type = %s", id, type));
-		return (T) Proxy.newProxyInstance(
-				AnyXPCOM.class.getClassLoader(), 
-				new Class[] {type, NumeratedNsi.class}, 
-				new NsiProxy(browser, id));
+	static <T> T createProxy(Browser browser, int id, Class<T> type) {
+		BrowserContext context = getContext(browser);
+		NsiProxy handler = context.findProxy(id, type);
+		if (handler != null) {
+			return (T) handler.proxy;
+		}
+		handler = new NsiProxy(browser, id);
+		T proxy = newProxy(type, handler);
+		context.track(handler);
+		return proxy;
 	}
-	
 
+	/**
+	 * Creates a proxy of the {@code type} standing for the {@code member}
+	 * of the {@code parent}. The member is not evaluated until the proxy
+	 * is pinned or used to get a primitive value.
+	 *
+	 * @see BrowserContext#setLazyChaining(boolean)
+	 */
+	static <T> T createLazyProxy(NsiProxy parent, String member, Class<T> type) {
+		return newProxy(type, new NsiProxy(parent, member));
+	}
+
+	/**
+	 * Creates a generated stub of the {@code type} if there is one
+	 * (see {@link NsiStub}), or a dynamic proxy otherwise.
+	 */
 	@SuppressWarnings("unchecked")
-	public static <T> T convertFromNsi(Object param, Class<T> returnType, Browser browser) {
-		if (param == null) {
-			return null;
-		} else if (returnType == Boolean.class || returnType == boolean.class 
-				|| returnType == String.class || returnType == Double.class || returnType == double.class) {
-			return (T) param;
-		} else if ((returnType == Long.class || returnType == long.class) && param instanceof Double) {
-			Double paramDouble = (Double) param;
-			return (T) ((Long) paramDouble.longValue());
-		} else if ((returnType == Integer.class || returnType == int.class) && param instanceof Double) {
-			Double paramDouble = (Double) param;
-			return (T) ((Integer) paramDouble.intValue());
-		} else if (param instanceof Object[] && returnType.isArray()) {
-			Object[] paramArray = (Object[]) param;
-			Class<?> paramElementType = returnType.getComponentType();
-			Object resultArray = Array.newInstance(paramElementType, paramArray.length);
- 
-			for (int i = 0; i < paramArray.length; i++) {
-				Object objFromNsi = convertFromNsi(paramArray[i], paramElementType, browser);
-				Array.set(resultArray, i, objFromNsi);
-			}
-			
-			return (T) resultArray;
-		} else if (returnType.isInterface()) {
-			// Create interface proxy
-			int id = 0;
-			if ((param instanceof String) && ((String)param).startsWith("nsiId=")) {
-				id = Integer.parseInt(((String)param).substring(6));
-				return AnyXPCOM.createProxy(browser, id, returnType);
+	static <T> T newProxy(Class<T> type, NsiProxy handler) {
+		BrowserContext context = handler.context();
+		Constructor<?> constructor = context == null ? TypeCache.findProxyConstructor(type)
+				: context.getTypeCache().getProxyConstructor(type);
+		T proxy;
+		try {
+			proxy = (T) constructor.newInstance(handler);
+		} catch (InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		handler.proxy = proxy;
+		return proxy;
+	}
+
+	/**
+	 * Returns the id encoded in the {@code param} returned by
+	 * {@code convertNsi}, or {@code -1} if it is not a handle.
+	 * Handles decoded by {@link WireFormat} are their ids.
+	 *
+	 * @param tagged {@code true} if the {@code param} is decoded by
+	 * {@link WireFormat}, so strings like {@code "nsiId=1"} are not handles
+	 */
+	static int parseNsiId(Object param, boolean tagged) {
+		if (param instanceof Integer) {
+			return (Integer) param;
+		} else if (tagged || !(param instanceof String)) {
+			return -1;
+		}
+		String handle = (String) param;
+		int length = handle.length();
+		if (length <= NSI_ID_PREFIX.length() || !handle.startsWith(NSI_ID_PREFIX)) {
+			return -1;
+		}
+		int id = 0;
+		for (int i = NSI_ID_PREFIX.length(); i < length; i++) {
+			int digit = handle.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || id > (Integer.MAX_VALUE - digit) / 10) {
+				return -1;
 			}
+			id = id * 10 + digit;
 		}
-		return (T) param;
+		return id;
+	}
+
+	/**
+	 * Converts the {@code param} returned by {@code convertNsi}
+	 * to the {@code returnType}. Handles are converted to proxies.
+	 * If {@link BrowserContext#setJsonResults(boolean) JSON results}
+	 * are enabled, only handles decoded from them are converted, and
+	 * strings like {@code "nsiId=1"} stay strings.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T convertFromNsi(Object param, Class<T> returnType, Browser browser) {
+		return (T) getContext(browser).getTypeCache().getConverter(returnType).convert(param, browser);
 	}
 }
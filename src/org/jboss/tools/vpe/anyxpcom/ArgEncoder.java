@@ -0,0 +1,239 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+/**
+ * Encodes arguments of calls as JS literals in one pass, straight into
+ * the script being built. Integers are written as integers, primitive
+ * arrays are read without reflection, and strings are copied by runs
+ * of characters not needing escapes.
+ * <P>
+ * Scripts of calls are built in per-thread buffers, see
+ * {@link #acquire()}.
+ */
+final class ArgEncoder {
+	/** buffers larger than this are not kept */
+	private static final int MAX_BUFFER_CAPACITY = 64 * 1024;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+	private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>();
+
+	private ArgEncoder() {
+	}
+
+	/**
+	 * Takes the empty buffer of the current thread. The buffer is taken
+	 * until {@link #release(StringBuilder) released}, so a script built
+	 * while another one is being built gets a new buffer.
+	 */
+	static StringBuilder acquire() {
+		StringBuilder buffer = buffers.get();
+		if (buffer == null) {
+			return new StringBuilder(256);
+		}
+		buffers.set(null);
+		buffer.setLength(0);
+		return buffer;
+	}
+
+	/**
+	 * Gives the {@code buffer} back to the current thread.
+	 */
+	static void release(StringBuilder buffer) {
+		if (buffer.capacity() <= MAX_BUFFER_CAPACITY) {
+			buffers.set(buffer);
+		}
+	}
+
+	/**
+	 * Appends the JS literal of the {@code arg}. Proxies are rendered
+	 * by the {@code handler}.
+	 */
+	static void append(StringBuilder script, Object arg, NsiProxy handler) {
+		if (arg == null) {
+			script.append("null"); //$NON-NLS-1$
+		} else if (arg instanceof String) {
+			appendString(script, (String) arg);
+		} else if (arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+			script.append(((Number) arg).intValue());
+		} else if (arg instanceof Long) {
+			script.append(((Long) arg).longValue());
+		} else if (arg instanceof Number) {
+			appendNumber(script, ((Number) arg).doubleValue());
+		} else if (arg instanceof Boolean) {
+			script.append(((Boolean) arg).booleanValue());
+		} else if (arg instanceof NumeratedNsi) {
+			handler.appendNsi(script, (NumeratedNsi) arg);
+		} else if (arg instanceof CharSequence) {
+			appendString(script, (CharSequence) arg);
+		} else if (arg instanceof Character) {
+			appendChar(script, ((Character) arg).charValue());
+		} else if (arg instanceof byte[] && isPackedArguments(handler)) {
+			handler.context().getBinaryChannel().appendBytes(script, (byte[]) arg);
+		} else if (arg instanceof Object[]) {
+			Object[] array = (Object[]) arg;
+			script.append('[');
+			for (int i = 0; i < array.length; i++) {
+				if (i > 0) {
+					script.append(',');
+				}
+				append(script, array[i], handler);
+			}
+			script.append(']');
+		} else if (arg.getClass().isArray()) {
+			appendPrimitiveArray(script, arg);
+		} else {
+			script.append("null"); //XXX unknown type //$NON-NLS-1$
+		}
+	}
+
+	private static boolean isPackedArguments(NsiProxy handler) {
+		BrowserContext context = handler == null ? null : handler.context();
+		return context != null && context.getBinaryChannel().isPackedArguments();
+	}
+
+	/**
+	 * Appends the JS literal of the {@code value}. Integral values
+	 * are written without the fraction.
+	 */
+	static void appendNumber(StringBuilder script, double value) {
+		long integral = (long) value;
+		if (integral == value && integral != 0) {
+			script.append(integral);
+		} else if (Double.isNaN(value)) {
+			script.append("NaN"); //$NON-NLS-1$
+		} else {
+			// Infinity and exponents are written as JS expects
+			script.append(value);
+		}
+	}
+
+	/**
+	 * Appends the {@code value} as a JS string literal in single quotes.
+	 */
+	static void appendString(StringBuilder script, CharSequence value) {
+		script.append('\'');
+		int length = value.length();
+		int run = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (needsEscape(c)) {
+				script.append(value, run, i);
+				appendEscaped(script, c);
+				run = i + 1;
+			}
+		}
+		script.append(value, run, length).append('\'');
+	}
+
+	static void appendChar(StringBuilder script, char c) {
+		script.append('\'');
+		if (needsEscape(c)) {
+			appendEscaped(script, c);
+		} else {
+			script.append(c);
+		}
+		script.append('\'');
+	}
+
+	private static boolean needsEscape(char c) {
+		// line and paragraph separators end JS lines, as well as \n and \r
+		return c < ' ' || c == '\\' || c == '\'' || c == '"'
+				|| c == '\u2028' || c == '\u2029';
+	}
+
+	static void appendEscaped(StringBuilder script, char c) {
+		switch (c) {
+		case '\\':
+			script.append("\\\\"); //$NON-NLS-1$
+			break;
+		case '\'':
+			script.append("\\'"); //$NON-NLS-1$
+			break;
+		case '"':
+			script.append("\\\""); //$NON-NLS-1$
+			break;
+		case '\n':
+			script.append("\\n"); //$NON-NLS-1$
+			break;
+		case '\r':
+			script.append("\\r"); //$NON-NLS-1$
+			break;
+		case '\t':
+			script.append("\\t"); //$NON-NLS-1$
+			break;
+		default:
+			script.append("\\u") //$NON-NLS-1$
+					.append(HEX_DIGITS[c >> 12]).append(HEX_DIGITS[(c >> 8) & 0xF])
+					.append(HEX_DIGITS[(c >> 4) & 0xF]).append(HEX_DIGITS[c & 0xF]);
+		}
+	}
+
+	private static void appendPrimitiveArray(StringBuilder script, Object array) {
+		script.append('[');
+		if (array instanceof int[]) {
+			int[] values = (int[]) array;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					script.append(',');
+				}
+				script.append(values[i]);
+			}
+		} else if (array instanceof double[]) {
+			double[] values = (double[]) array;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					script.append(',');
+				}
+				appendNumber(script, values[i]);
+			}
+		} else if (array instanceof long[]) {
+			long[] values = (long[]) array;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					script.append(',');
+				}
+				script.append(values[i]);
+			}
+		} else if (array instanceof boolean[]) {
+			boolean[] values = (boolean[]) array;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					script.append(',');
+				}
+				script.append(values[i]);
+			}
+		} else if (array instanceof byte[]) {
+			byte[] values = (byte[]) array;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					script.append(',');
+				}
+				script.append(values[i]);
+			}
+		} else if (array instanceof short[]) {
+			short[] values = (short[]) array;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					script.append(',');
+				}
+				script.append(values[i]);
+			}
+		} else if (array instanceof float[]) {
+			float[] values = (float[]) array;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					script.append(',');
+				}
+				appendNumber(script, values[i]);
+			}
+		} else {
+			char[] values = (char[]) array;
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					script.append(',');
+				}
+				appendChar(script, values[i]);
+			}
+		}
+		script.append(']');
+	}
+}
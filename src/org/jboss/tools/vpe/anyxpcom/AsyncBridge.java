@@ -0,0 +1,139 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import org.eclipse.swt.browser.Browser;
+
+/**
+ * Asynchronous access to a {@link Browser}, returned by
+ * {@link AnyXPCOM#async(Browser)}. The methods may be called from any
+ * thread and never block: the requests are queued and sent to the browser
+ * in the next tick of the UI loop, all pending requests in one script.
+ * <P>
+ * Requests are sent in the {@link BridgeLane#INTERACTIVE interactive}
+ * lane, unless the bridge is obtained by {@link #inLane(BridgeLane)}.
+ * <P>
+ * The futures are completed on the UI thread, while their listeners
+ * are notified by the {@link #setCompletionExecutor(Executor) completion
+ * executor}, i.e. off the UI thread by default.
+ */
+public final class AsyncBridge {
+	private final BridgeQueue queue;
+	private final BridgeLane lane;
+
+	AsyncBridge(BridgeQueue queue, BridgeLane lane) {
+		this.queue = queue;
+		this.lane = lane;
+	}
+
+	/**
+	 * Returns the bridge of the same browser sending its requests
+	 * in the {@code lane}.
+	 */
+	public AsyncBridge inLane(BridgeLane lane) {
+		return lane == this.lane ? this : new AsyncBridge(queue, lane);
+	}
+
+	public BridgeLane getLane() {
+		return lane;
+	}
+
+	/**
+	 * Cancels all requests of the lane of the bridge which have not been
+	 * sent yet. Calls dispatched from other threads in the lane are
+	 * cancelled too: they fail with {@link XPCOM#NS_ERROR_ABORT}.
+	 *
+	 * @return the number of the cancelled requests
+	 */
+	public int cancelPending() {
+		return queue.cancel(lane);
+	}
+
+	/**
+	 * Sets the executor notifying listeners of the futures
+	 * of all bridges of the browser.
+	 */
+	public void setCompletionExecutor(Executor completionExecutor) {
+		queue.completionExecutor = completionExecutor;
+	}
+
+	/**
+	 * Asynchronous version of
+	 * {@link AnyXPCOM#queryInterface(String, Class, Browser)}.
+	 */
+	public <T> BridgeFuture<T> queryInterface(final String jsExpression, final Class<T> type) {
+		BridgeFuture<T> future = new BridgeFuture<T>(queue.completionExecutor);
+		queue.submit(new BridgeRequest.Expression<T>(future) {
+			@Override
+			void appendExpression(StringBuilder script) {
+				script.append(jsExpression);
+			}
+
+			@Override
+			T convert(Object value, Browser browser) {
+				T result = AnyXPCOM.convertFromNsi(value, type, browser);
+				if (result != null) {
+					NsiProxy handler = NsiProxy.getHandler(result);
+					if (handler != null) {
+						handler.setOrigin(jsExpression);
+					}
+				}
+				return result;
+			}
+		}, lane);
+		return future;
+	}
+
+	/**
+	 * Calls the method {@code methodName} of the {@code proxy} (created
+	 * by {@link AnyXPCOM}) with the {@code args}. The future gives
+	 * the result of the method, boxed if it is primitive. Getters
+	 * of interfaces are always evaluated, even if lazy chaining
+	 * is enabled.
+	 *
+	 * @throws IllegalArgumentException if the object is not a proxy, or it
+	 * has no method with the name and the number of arguments
+	 */
+	public <T> BridgeFuture<T> call(Object proxy, String methodName, Object... args) {
+		NsiProxy handler = NsiProxy.getHandler(proxy);
+		if (handler == null) {
+			throw new IllegalArgumentException("Not a proxy: " + proxy); //$NON-NLS-1$
+		}
+		CallSite callSite = handler.callSite(findMethod(proxy, methodName, args.length));
+		if (callSite.kind != CallSite.Kind.GETTER && callSite.kind != CallSite.Kind.METHOD) {
+			throw new IllegalArgumentException("Not a call to the browser: " + methodName); //$NON-NLS-1$
+		}
+
+		BridgeFuture<T> future = new BridgeFuture<T>(queue.completionExecutor);
+		queue.submit(handler.<T>newCallRequest(future, callSite, args), lane);
+		return future;
+	}
+
+	/**
+	 * Runs the {@code task} on the UI thread, in order with the other
+	 * requests. The task may use proxies synchronously.
+	 */
+	public <T> BridgeFuture<T> submit(Callable<T> task) {
+		BridgeFuture<T> future = new BridgeFuture<T>(queue.completionExecutor);
+		queue.submit(new BridgeRequest.Task<T>(future, task), lane);
+		return future;
+	}
+
+	private static Method findMethod(Object proxy, String methodName, int argCount) {
+		for (Class<?> type : proxy.getClass().getInterfaces()) {
+			if (type == NumeratedNsi.class) {
+				continue;
+			}
+			for (Method method : type.getMethods()) {
+				if (method.getName().equals(methodName)
+						&& method.getParameterTypes().length == argCount) {
+					return method;
+				}
+			}
+		}
+		throw new IllegalArgumentException("No method " + methodName //$NON-NLS-1$
+				+ " with " + argCount + " arguments in " + proxy.getClass()); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
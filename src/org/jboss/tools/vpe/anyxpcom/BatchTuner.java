@@ -0,0 +1,351 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tunes the batching of a browser by the measured cost of its scripts,
+ * when the {@link BrowserContext#setLatencyTarget(int) latency target}
+ * is set. The cost of a script is estimated as a round trip plus
+ * a cost per character, fitted to the recent scripts (older ones
+ * weigh less), so it follows the engine of the browser and the size
+ * of the document.
+ * <P>
+ * After a flush of the requests of the browser (at most every 100ms),
+ * the tuner adjusts
+ * <ul>
+ * <li>the {@link BrowserContext#setMaxBatchSize(BridgeLane, int) batch size}
+ * of the {@link BridgeLane#BULK bulk} lane: as large as possible while
+ * a bulk script takes at most half of the target, since interactive
+ * requests wait for it,</li>
+ * <li>the {@link BrowserContext#setDispatchWindow(int) dispatch window}:
+ * halved when interactive requests wait longer than the target, and
+ * widened by a millisecond while they wait less than half of it and
+ * a round trip costs more than the window,</li>
+ * <li>the thresholds of {@link BrowserContext#setDeferredWrites(boolean)
+ * deferred writes}, when they are enabled: the
+ * {@link BrowserContext#setMaxDeferredLength(int) length} of a script
+ * of writes taking half of the target, the
+ * {@link BrowserContext#setMaxDeferredCalls(int) number of calls} of
+ * the average length fitting into it, and the
+ * {@link BrowserContext#setMaxDeferredDelay(int) delay} of ten round
+ * trips (so flushes take at most a tenth of the UI thread), but at
+ * most the target.</li>
+ * </ul>
+ * Deferred writes are tuned on their flushes too, so browsers
+ * only writing are tuned as well.
+ * Every change is recorded with its reason. The last changes are kept.
+ */
+public final class BatchTuner {
+	private static final int MAX_ADJUSTMENTS = 64;
+	private static final int MAX_BATCH_SIZE = 4096;
+	private static final int MIN_DEFERRED_LENGTH = 1024;
+	private static final int MAX_DEFERRED_LENGTH = 1024 * 1024;
+	/** round trips a deferred write may wait for */
+	private static final int DEFERRED_ROUND_TRIPS = 10;
+	/** weight of a sample relative to the previous one */
+	private static final double DECAY = 0.95;
+	/** relative difference of the batch size worth a change */
+	private static final double HYSTERESIS = 0.25;
+	/** minimal time (in nanoseconds) between the changes */
+	private static final long TUNING_INTERVAL = 100 * 1000000L;
+
+	/**
+	 * A change of a threshold made by the tuner.
+	 */
+	public static final class Adjustment {
+		private final String threshold;
+		private final int oldValue;
+		private final int newValue;
+		private final String reason;
+		private final long time;
+
+		Adjustment(String threshold, int oldValue, int newValue, String reason, long time) {
+			this.threshold = threshold;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+			this.reason = reason;
+			this.time = time;
+		}
+
+		/**
+		 * Returns the name of the threshold: {@code "maxBatchSize"},
+		 * {@code "dispatchWindow"}, {@code "maxDeferredLength"},
+		 * {@code "maxDeferredCalls"} or {@code "maxDeferredDelay"}.
+		 */
+		public String getThreshold() {
+			return threshold;
+		}
+
+		public int getOldValue() {
+			return oldValue;
+		}
+
+		public int getNewValue() {
+			return newValue;
+		}
+
+		public String getReason() {
+			return reason;
+		}
+
+		/**
+		 * Returns the time of the change, as {@link System#currentTimeMillis()}.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			return threshold + ' ' + oldValue + " -> " + newValue + ": " + reason; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	private final LinkedList<Adjustment> adjustments = new LinkedList<Adjustment>();
+	/* weighted sums of the samples (characters, nanoseconds) of scripts */
+	private double weight;
+	private double sumChars;
+	private double sumTime;
+	private double sumChars2;
+	private double sumCharsTime;
+	/* moving averages */
+	private double charsPerRequest;
+	private double charsPerWrite;
+	private double interactiveWait;
+	private long lastTuning = System.nanoTime();
+
+	/**
+	 * Returns the estimated cost (in milliseconds) of a round trip,
+	 * i.e. of an empty script.
+	 */
+	public synchronized double getRoundTripCost() {
+		return fit()[0] / 1e6;
+	}
+
+	/**
+	 * Returns the estimated cost (in milliseconds) of a thousand
+	 * characters of a script.
+	 */
+	public synchronized double getCostPerKilochar() {
+		return fit()[1] * 1000 / 1e6;
+	}
+
+	/**
+	 * Returns the average length of the expression of a request.
+	 */
+	public synchronized double getCharsPerRequest() {
+		return charsPerRequest;
+	}
+
+	/**
+	 * Returns the average length of the script of a deferred write.
+	 */
+	public synchronized double getCharsPerWrite() {
+		return charsPerWrite;
+	}
+
+	/**
+	 * Returns the average time (in milliseconds) interactive requests
+	 * wait in the queue.
+	 */
+	public synchronized double getInteractiveWait() {
+		return interactiveWait / 1e6;
+	}
+
+	/**
+	 * Returns the last changes, the oldest first.
+	 */
+	public synchronized List<Adjustment> getAdjustments() {
+		return new ArrayList<Adjustment>(adjustments);
+	}
+
+	/**
+	 * Forgets the measurements and the changes.
+	 */
+	public synchronized void clear() {
+		adjustments.clear();
+		weight = sumChars = sumTime = sumChars2 = sumCharsTime = 0;
+		charsPerRequest = charsPerWrite = interactiveWait = 0;
+	}
+
+	/**
+	 * Records a script of {@code chars} characters evaluated
+	 * in {@code elapsed} nanoseconds.
+	 */
+	synchronized void sampleScript(int chars, long elapsed) {
+		weight = weight * DECAY + 1;
+		sumChars = sumChars * DECAY + chars;
+		sumTime = sumTime * DECAY + elapsed;
+		sumChars2 = sumChars2 * DECAY + (double) chars * chars;
+		sumCharsTime = sumCharsTime * DECAY + (double) chars * elapsed;
+	}
+
+	/**
+	 * Records a script of {@code chars} characters combining
+	 * {@code count} requests.
+	 */
+	synchronized void sampleRequests(int chars, int count) {
+		charsPerRequest = average(charsPerRequest, (double) chars / count);
+	}
+
+	/**
+	 * Records a script of {@code chars} characters combining
+	 * {@code count} deferred writes.
+	 */
+	synchronized void sampleWrites(int chars, int count) {
+		charsPerWrite = average(charsPerWrite, (double) chars / count);
+	}
+
+	/**
+	 * Records an interactive request sent after {@code wait} nanoseconds.
+	 */
+	synchronized void sampleInteractiveWait(long wait) {
+		interactiveWait = average(interactiveWait, wait);
+	}
+
+	/**
+	 * Adjusts the thresholds of the {@code context} to its latency
+	 * target, if it is set.
+	 */
+	void tune(BrowserContext context) {
+		int target = context.getLatencyTarget();
+		long now = System.nanoTime();
+		if (target <= 0 || now - lastTuning < TUNING_INTERVAL) {
+			return;
+		}
+		double roundTrip;
+		double perChar;
+		double chars;
+		double writeChars;
+		double wait;
+		synchronized (this) {
+			if (weight == 0) {
+				return;
+			}
+			lastTuning = now;
+			double[] fit = fit();
+			roundTrip = fit[0];
+			perChar = fit[1];
+			chars = charsPerRequest;
+			writeChars = charsPerWrite;
+			wait = interactiveWait;
+		}
+		double available = target * 1e6 / 2 - roundTrip;
+		if (context.isDeferredWrites()) {
+			tuneDeferredWrites(context, target, roundTrip, perChar, writeChars, available);
+		}
+		if (chars == 0) {
+			return;
+		}
+
+		// a bulk script takes at most half of the target
+		double perRequest = perChar * chars;
+		int size = (int) Math.max(1, Math.min(MAX_BATCH_SIZE, available / perRequest));
+		int oldSize = context.getMaxBatchSize(BridgeLane.BULK);
+		if (perRequest > 0 && (oldSize == 0 || isWorthChange(oldSize, size))) {
+			context.setMaxBatchSize(BridgeLane.BULK, size);
+			record("maxBatchSize", oldSize, size, format( //$NON-NLS-1$
+					"a round trip costs %.2fms and a request %.3fms, so %d bulk requests fit into half of the %dms target", //$NON-NLS-1$
+					roundTrip / 1e6, perRequest / 1e6, size, target));
+		}
+
+		int window = context.getDispatchWindow();
+		if (wait > target * 1e6 && window > 0) {
+			int newWindow = window / 2;
+			context.setDispatchWindow(newWindow);
+			record("dispatchWindow", window, newWindow, format( //$NON-NLS-1$
+					"interactive requests wait %.2fms, more than the %dms target", //$NON-NLS-1$
+					wait / 1e6, target));
+		} else if (wait < target * 1e6 / 2 && roundTrip > window * 1e6 && window < target / 4) {
+			context.setDispatchWindow(window + 1);
+			record("dispatchWindow", window, window + 1, format( //$NON-NLS-1$
+					"a round trip costs %.2fms, more than the window, and interactive requests wait %.2fms only", //$NON-NLS-1$
+					roundTrip / 1e6, wait / 1e6));
+		}
+	}
+
+	/**
+	 * Adjusts the thresholds of deferred writes. The {@code available}
+	 * time (in nanoseconds) is half of the target less a round trip.
+	 */
+	private void tuneDeferredWrites(BrowserContext context, int target,
+			double roundTrip, double perChar, double writeChars, double available) {
+		if (perChar > 0) {
+			int length = (int) Math.max(MIN_DEFERRED_LENGTH,
+					Math.min(MAX_DEFERRED_LENGTH, available / perChar));
+			int oldLength = context.getMaxDeferredLength();
+			if (isWorthChange(oldLength, length)) {
+				context.setMaxDeferredLength(length);
+				record("maxDeferredLength", oldLength, length, format( //$NON-NLS-1$
+						"a round trip costs %.2fms and a kilochar %.3fms, so %d characters of writes fit into half of the %dms target", //$NON-NLS-1$
+						roundTrip / 1e6, perChar * 1000 / 1e6, length, target));
+			}
+		}
+		if (writeChars > 0) {
+			int length = context.getMaxDeferredLength();
+			int calls = (int) Math.max(1, length / writeChars);
+			int oldCalls = context.getMaxDeferredCalls();
+			if (isWorthChange(oldCalls, calls)) {
+				context.setMaxDeferredCalls(calls);
+				record("maxDeferredCalls", oldCalls, calls, format( //$NON-NLS-1$
+						"a write takes %.0f characters, so %d writes fit into %d characters", //$NON-NLS-1$
+						writeChars, calls, length));
+			}
+		}
+		int delay = (int) Math.max(1, Math.min(target,
+				Math.ceil(roundTrip * DEFERRED_ROUND_TRIPS / 1e6)));
+		int oldDelay = context.getMaxDeferredDelay();
+		if (isWorthChange(oldDelay, delay)) {
+			context.setMaxDeferredDelay(delay);
+			record("maxDeferredDelay", oldDelay, delay, format( //$NON-NLS-1$
+					"a round trip costs %.2fms, so writes wait for %d round trips, but at most the %dms target", //$NON-NLS-1$
+					roundTrip / 1e6, DEFERRED_ROUND_TRIPS, target));
+		}
+	}
+
+	private static boolean isWorthChange(int oldValue, int newValue) {
+		return Math.abs(newValue - oldValue) > Math.max(1, oldValue * HYSTERESIS);
+	}
+
+	/**
+	 * Returns the weighted least squares fit of the samples:
+	 * the cost of a round trip and the cost of a character,
+	 * in nanoseconds.
+	 */
+	private double[] fit() {
+		if (weight == 0) {
+			return new double[] {0, 0};
+		}
+		double determinant = weight * sumChars2 - sumChars * sumChars;
+		double perChar;
+		double roundTrip;
+		if (determinant <= 1e-9 * weight * sumChars2) {
+			// the scripts are of the same length, so the costs cannot be told apart
+			perChar = 0;
+			roundTrip = sumTime / weight;
+		} else {
+			perChar = Math.max(0, (weight * sumCharsTime - sumChars * sumTime) / determinant);
+			roundTrip = Math.max(0, (sumTime - perChar * sumChars) / weight);
+		}
+		return new double[] {roundTrip, perChar};
+	}
+
+	private synchronized void record(String threshold, int oldValue, int newValue, String reason) {
+		if (adjustments.size() == MAX_ADJUSTMENTS) {
+			adjustments.removeFirst();
+		}
+		adjustments.add(new Adjustment(threshold, oldValue, newValue, reason,
+				System.currentTimeMillis()));
+	}
+
+	private static double average(double average, double sample) {
+		return average == 0 ? sample : average * DECAY + sample * (1 - DECAY);
+	}
+
+	private static String format(String format, Object... args) {
+		return String.format(Locale.ENGLISH, format, args);
+	}
+}
@@ -0,0 +1,227 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import org.eclipse.swt.browser.Browser;
+
+/**
+ * Transfers binary data of a browser packed into strings, returned by
+ * {@link AnyXPCOM#binary(Browser)}. Typed arrays, {@code ArrayBuffer}s
+ * and {@code ImageData} are packed by the runtime, so a byte takes
+ * a character of a string instead of a {@code Double} of an array.
+ * <P>
+ * Bytes are packed in base64 by default. {@link Packing#LATIN1 Latin-1}
+ * packing (a character per byte) is denser, but needs the engine
+ * to pass any characters through {@link Browser#evaluate(String)}.
+ * <P>
+ * When {@link #setPackedArguments(boolean) enabled}, {@code byte[]}
+ * arguments of calls made through proxies are packed as well,
+ * and received by the browser as {@code Uint8Array}s.
+ * <P>
+ * Like the {@link Browser} itself, the channel must be used from
+ * the UI thread only. Typed arrays are required in the browser.
+ */
+public final class BinaryChannel {
+	/**
+	 * Packing of bytes into strings.
+	 */
+	public enum Packing {
+		BASE64,
+		LATIN1
+	}
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1"); //$NON-NLS-1$
+	private static final char[] BASE64_DIGITS
+			= "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray(); //$NON-NLS-1$
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		for (int i = 0; i < BASE64_VALUES.length; i++) {
+			BASE64_VALUES[i] = -1;
+		}
+		for (int i = 0; i < BASE64_DIGITS.length; i++) {
+			BASE64_VALUES[BASE64_DIGITS[i]] = (byte) i;
+		}
+	}
+
+	private final BrowserContext context;
+	private Packing packing = Packing.BASE64;
+	private boolean packedArguments;
+
+	BinaryChannel(BrowserContext context) {
+		this.context = context;
+	}
+
+	public Packing getPacking() {
+		return packing;
+	}
+
+	public void setPacking(Packing packing) {
+		this.packing = packing;
+	}
+
+	public boolean isPackedArguments() {
+		return packedArguments;
+	}
+
+	/**
+	 * Enables or disables packing of {@code byte[]} arguments. When it
+	 * is disabled (the default), they are passed as arrays of numbers.
+	 */
+	public void setPackedArguments(boolean packedArguments) {
+		this.packedArguments = packedArguments;
+	}
+
+	/**
+	 * Returns the bytes of the value of the {@code jsExpression}:
+	 * an {@code ArrayBuffer}, a typed array or a {@code DataView}
+	 * (the bytes it views), an {@code ImageData} (its RGBA data),
+	 * or an array of numbers.
+	 *
+	 * @return the bytes, or {@code null} if the value is {@code null}
+	 * or {@code undefined}
+	 */
+	public byte[] readBytes(String jsExpression) {
+		String packed = read(jsExpression, "v", false); //$NON-NLS-1$
+		return packed == null ? null : unpack(packed, 0);
+	}
+
+	/**
+	 * Returns the bytes of the value of the {@code jsExpression},
+	 * see {@link #readBytes(String)}.
+	 */
+	public ByteBuffer readBuffer(String jsExpression) {
+		byte[] bytes = readBytes(jsExpression);
+		return bytes == null ? null : ByteBuffer.wrap(bytes);
+	}
+
+	/**
+	 * Returns the elements of the value of the {@code jsExpression}
+	 * converted to 32-bit integers: an array or a typed array,
+	 * or an {@code ArrayBuffer} viewed as {@code Int32Array}.
+	 */
+	public int[] readInts(String jsExpression) {
+		String packed = read(jsExpression, "new Int32Array(v)", true); //$NON-NLS-1$
+		if (packed == null) {
+			return null;
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(unpack(packed, 1)).order(order(packed));
+		int[] result = new int[bytes.remaining() / 4];
+		bytes.asIntBuffer().get(result);
+		return result;
+	}
+
+	/**
+	 * Returns the elements of the value of the {@code jsExpression}
+	 * converted to doubles: an array or a typed array,
+	 * or an {@code ArrayBuffer} viewed as {@code Float64Array}.
+	 */
+	public double[] readDoubles(String jsExpression) {
+		String packed = read(jsExpression, "new Float64Array(v)", true); //$NON-NLS-1$
+		if (packed == null) {
+			return null;
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(unpack(packed, 1)).order(order(packed));
+		double[] result = new double[bytes.remaining() / 8];
+		bytes.asDoubleBuffer().get(result);
+		return result;
+	}
+
+	/**
+	 * Evaluates the {@code jsExpression} as {@code v}, and returns the
+	 * bytes of the {@code view} packed. If the bytes are {@code ordered},
+	 * they are preceded by the byte order of the browser ({@code L}
+	 * or {@code B}).
+	 */
+	private String read(String jsExpression, String view, boolean ordered) {
+		return (String) context.evaluate("var v=" + jsExpression + ";" + //$NON-NLS-1$ //$NON-NLS-2$
+				"if(v===null||v===undefined)return null;" + //$NON-NLS-1$
+				"return " + (ordered ? "(nsiLittleEndian?'L':'B')+" : "") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ "packNsi(bytesNsi(" + view + ")," + (packing == Packing.BASE64) + ")", true); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	private static ByteOrder order(String packed) {
+		return packed.charAt(0) == 'L' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+
+	private byte[] unpack(String packed, int start) {
+		if (packing == Packing.LATIN1) {
+			return (start == 0 ? packed : packed.substring(start)).getBytes(LATIN1);
+		}
+		return decodeBase64(packed, start);
+	}
+
+	/**
+	 * Appends the JS expression giving the {@code bytes} as {@code Uint8Array}.
+	 */
+	void appendBytes(StringBuilder script, byte[] bytes) {
+		script.append("unpackNsi("); //$NON-NLS-1$
+		if (packing == Packing.LATIN1) {
+			script.append('\'');
+			for (int i = 0; i < bytes.length; i++) {
+				char c = (char) (bytes[i] & 0xFF);
+				// the rest of Latin-1 is safe in JS string literals
+				if (c < ' ' || c == '\\' || c == '\'') {
+					ArgEncoder.appendEscaped(script, c);
+				} else {
+					script.append(c);
+				}
+			}
+			script.append("',false)"); //$NON-NLS-1$
+		} else {
+			script.append('\'');
+			encodeBase64(script, bytes);
+			script.append("',true)"); //$NON-NLS-1$
+		}
+	}
+
+	static void encodeBase64(StringBuilder script, byte[] bytes) {
+		int i = 0;
+		for (; i + 2 < bytes.length; i += 3) {
+			int bits = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+			script.append(BASE64_DIGITS[bits >> 18]).append(BASE64_DIGITS[(bits >> 12) & 0x3F])
+					.append(BASE64_DIGITS[(bits >> 6) & 0x3F]).append(BASE64_DIGITS[bits & 0x3F]);
+		}
+		int remaining = bytes.length - i;
+		if (remaining > 0) {
+			int bits = (bytes[i] & 0xFF) << 16 | (remaining == 2 ? (bytes[i + 1] & 0xFF) << 8 : 0);
+			script.append(BASE64_DIGITS[bits >> 18]).append(BASE64_DIGITS[(bits >> 12) & 0x3F])
+					.append(remaining == 2 ? BASE64_DIGITS[(bits >> 6) & 0x3F] : '=').append('=');
+		}
+	}
+
+	static byte[] decodeBase64(String packed, int start) {
+		int end = packed.length();
+		while (end > start && packed.charAt(end - 1) == '=') {
+			end--;
+		}
+		byte[] bytes = new byte[(end - start) * 3 / 4];
+		int bits = 0;
+		int count = 0;
+		int position = 0;
+		for (int i = start; i < end; i++) {
+			char c = packed.charAt(i);
+			int value = c < 128 ? BASE64_VALUES[c] : -1;
+			if (value < 0) {
+				throw new IllegalArgumentException("Not base64: " + c); //$NON-NLS-1$
+			}
+			bits = bits << 6 | value;
+			if (++count == 4) {
+				bytes[position++] = (byte) (bits >> 16);
+				bytes[position++] = (byte) (bits >> 8);
+				bytes[position++] = (byte) bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+		if (count == 3) {
+			bytes[position++] = (byte) (bits >> 10);
+			bytes[position++] = (byte) (bits >> 2);
+		} else if (count == 2) {
+			bytes[position++] = (byte) (bits >> 4);
+		}
+		return bytes;
+	}
+}
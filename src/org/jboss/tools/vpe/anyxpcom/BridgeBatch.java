@@ -0,0 +1,159 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.swt.browser.Browser;
+import org.mozilla.xpcom.XPCOMException;
+
+/**
+ * A sequence of dependent calls sent to the browser in one script,
+ * returned by {@link AnyXPCOM#beginBatch(Browser)}:
+ * <pre>
+ * BridgeBatch batch = AnyXPCOM.beginBatch(browser);
+ * try {
+ * 	nsIDOMElement div = document.createElement("div");
+ * 	body.appendChild(div);
+ * 	div.setAttribute("id", "main");
+ * } finally {
+ * 	batch.commit();
+ * }</pre>
+ * While the batch is open, calls made through the proxies of the browser
+ * on the UI thread are recorded instead of being evaluated. A call
+ * returning an interface gives a placeholder right away, which stands
+ * for a JS local variable. The placeholder may be used as the target
+ * or an argument of the next calls, e.g. {@code nsiVar0.setAttribute('id','main')}.
+ * <P>
+ * The recorded calls are sent by {@link #commit()}, or together with
+ * the first call returning a primitive value, in front of its script.
+ * The same script resolves the placeholders, so they work as usual
+ * proxies afterwards. The calls are not guarded separately: the first
+ * failing call stops the script, and the placeholders created by
+ * the batch become unavailable.
+ * <P>
+ * Batches may be nested, then the calls are sent by the commit
+ * of the outermost one.
+ */
+public final class BridgeBatch {
+	private final BrowserContext context;
+	private final StringBuilder statements = new StringBuilder();
+	/** placeholders of the recorded calls, by their variables */
+	private final List<NsiProxy> placeholders = new ArrayList<NsiProxy>();
+	private int depth = 1;
+	private RuntimeException failure;
+
+	BridgeBatch(BrowserContext context) {
+		this.context = context;
+	}
+
+	public Browser getBrowser() {
+		return context.getBrowser();
+	}
+
+	/**
+	 * Ends the batch and sends the calls recorded by it.
+	 *
+	 * @throws XPCOMException if a call of the batch has failed
+	 */
+	public void commit() {
+		if (--depth == 0) {
+			context.endBatch(this);
+		}
+	}
+
+	void begin() {
+		depth++;
+	}
+
+	boolean isPending() {
+		return statements.length() > 0;
+	}
+
+	/**
+	 * Records a call of a void method or of a method returning
+	 * an interface.
+	 *
+	 * @param expression the call, e.g. {@code nsiArray[3].createElement('div')}
+	 * @return the placeholder of the result, or {@code null} for a void call
+	 */
+	Object record(CallSite callSite, String expression) {
+		if (callSite.isVoid) {
+			statements.append(expression).append(';');
+			return null;
+		}
+		String variable = "nsiVar" + placeholders.size(); //$NON-NLS-1$
+		statements.append("var ").append(variable).append('=') //$NON-NLS-1$
+				.append(expression).append(';');
+		NsiProxy placeholder = new NsiProxy(context, variable);
+		placeholders.add(placeholder);
+		return AnyXPCOM.newProxy(callSite.returnType, placeholder);
+	}
+
+	/**
+	 * Returns {@code true} if the result of the calls of the
+	 * {@code callSite} can be given by a placeholder.
+	 */
+	static boolean isRecordable(CallSite callSite) {
+		return callSite.isVoid || callSite.returnType.isInterface();
+	}
+
+	/**
+	 * Appends the recorded calls and the {@code releases} of unused ids,
+	 * followed by the {@code script} returning the ids of the placeholders
+	 * and the result of the script.
+	 */
+	void appendScript(StringBuilder full, CharSequence releases, String script) {
+		full.append(statements).append(releases).append("return [["); //$NON-NLS-1$
+		for (int i = 0; i < placeholders.size(); i++) {
+			if (i > 0) {
+				full.append(',');
+			}
+			full.append("convertNsi(nsiVar").append(i).append(')'); //$NON-NLS-1$
+		}
+		full.append("],(function(){").append(script).append("})()];"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Resolves the placeholders by the {@code result} of the script
+	 * made by {@link #appendScript}, and starts recording anew.
+	 *
+	 * @return the result of the script wrapped by the batch
+	 */
+	Object sent(Object result) {
+		Object[] results = (Object[]) result;
+		Object[] ids = (Object[]) results[0];
+		for (int i = 0; i < placeholders.size(); i++) {
+			placeholders.get(i).resolve(AnyXPCOM.parseNsiId(ids[i], context.isJsonResults()));
+		}
+		reset();
+		return results[1];
+	}
+
+	/**
+	 * Called when the script of the batch has failed.
+	 */
+	void failed(RuntimeException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		for (NsiProxy placeholder : placeholders) {
+			placeholder.resolve(-1);
+		}
+		reset();
+	}
+
+	/**
+	 * Throws the first failure of the batch, if any.
+	 */
+	void checkFailure() {
+		if (failure != null) {
+			throw new XPCOMException(XPCOM.NS_ERROR_ABORT,
+					"The batch has failed: " + failure.getMessage());
+		}
+	}
+
+	private void reset() {
+		statements.setLength(0);
+		placeholders.clear();
+	}
+}
@@ -0,0 +1,175 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a request sent to the browser by {@link AsyncBridge}.
+ * The future is completed on the UI thread, but its listeners are
+ * notified by the completion executor of the bridge, so they never
+ * slow down the UI.
+ */
+public class BridgeFuture<V> implements Future<V> {
+	/**
+	 * Listener of the completion of a {@link BridgeFuture}.
+	 */
+	public interface Listener<V> {
+		void completed(BridgeFuture<V> future);
+	}
+
+	private final Executor executor;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private List<Listener<V>> listeners = new ArrayList<Listener<V>>(1);
+	private V value;
+	private Throwable failure;
+	private boolean cancelled;
+	private boolean sent;
+
+	/**
+	 * @param executor notifying the listeners, or {@code null}
+	 * to notify them on the thread completing the future
+	 */
+	BridgeFuture(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Adds the {@code listener} to be notified when the future is done.
+	 * If it is done already, the listener is notified immediately.
+	 */
+	public void addListener(Listener<V> listener) {
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		notifyListener(listener);
+	}
+
+	/**
+	 * Cancels the request if it has not been sent to the browser yet.
+	 * A request being sent cannot be cancelled, since its effect
+	 * on the document cannot be undone.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		List<Listener<V>> doneListeners;
+		synchronized (this) {
+			if (listeners == null || sent) {
+				return false;
+			}
+			cancelled = true;
+			doneListeners = listeners;
+			listeners = null;
+		}
+		done(doneListeners);
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return listeners == null;
+	}
+
+	public V get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getValue();
+	}
+
+	public V get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getValue();
+	}
+
+	/**
+	 * Marks the request as being sent, so it cannot be cancelled anymore.
+	 *
+	 * @return {@code false} if the future is done already
+	 */
+	synchronized boolean markSent() {
+		if (listeners == null) {
+			return false;
+		}
+		sent = true;
+		return true;
+	}
+
+	/**
+	 * Makes the request cancellable again, when it has been put back
+	 * into the queue without being executed.
+	 */
+	synchronized void markUnsent() {
+		sent = false;
+	}
+
+	void complete(V value) {
+		List<Listener<V>> doneListeners;
+		synchronized (this) {
+			if (listeners == null) {
+				return;
+			}
+			this.value = value;
+			doneListeners = listeners;
+			listeners = null;
+		}
+		done(doneListeners);
+	}
+
+	void fail(Throwable failure) {
+		List<Listener<V>> doneListeners;
+		synchronized (this) {
+			if (listeners == null) {
+				return;
+			}
+			this.failure = failure;
+			doneListeners = listeners;
+			listeners = null;
+		}
+		done(doneListeners);
+	}
+
+	private synchronized V getValue() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		} else if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+
+	/**
+	 * Releases the waiters and notifies the {@code doneListeners}, taken
+	 * by the only thread which has completed the future.
+	 */
+	private void done(List<Listener<V>> doneListeners) {
+		done.countDown();
+		for (Listener<V> listener : doneListeners) {
+			notifyListener(listener);
+		}
+	}
+
+	private void notifyListener(final Listener<V> listener) {
+		if (executor == null) {
+			listener.completed(this);
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				listener.completed(BridgeFuture.this);
+			}
+		});
+	}
+}
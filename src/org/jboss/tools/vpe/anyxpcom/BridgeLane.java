@@ -0,0 +1,34 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+/**
+ * Priority lane of the requests sent to the browser by {@link AsyncBridge}
+ * or dispatched from threads other than the UI thread. Interactive requests
+ * always go into the next script, while bulk requests are sent in batches
+ * of {@link BrowserContext#setMaxBatchSize(BridgeLane, int) limited size},
+ * yielding to the UI loop between the batches.
+ * <P>
+ * The order of requests is kept within a lane, but not across lanes.
+ */
+public enum BridgeLane {
+	INTERACTIVE, BULK;
+
+	private static final ThreadLocal<BridgeLane> threadLane = new ThreadLocal<BridgeLane>() {
+		@Override
+		protected BridgeLane initialValue() {
+			return INTERACTIVE;
+		}
+	};
+
+	/**
+	 * Sets the lane of calls made through proxies by the current thread,
+	 * e.g. {@link #BULK} for a background indexer. It has no effect
+	 * on the UI thread, where the calls are made directly.
+	 */
+	public static void setThreadLane(BridgeLane lane) {
+		threadLane.set(lane);
+	}
+
+	public static BridgeLane getThreadLane() {
+		return threadLane.get();
+	}
+}
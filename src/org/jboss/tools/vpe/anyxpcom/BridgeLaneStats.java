@@ -0,0 +1,63 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+/**
+ * Snapshot of the metrics of a {@link BridgeLane} of a browser.
+ *
+ * @see BrowserContext#getLaneStats(BridgeLane)
+ */
+public final class BridgeLaneStats {
+	private final BridgeLane lane;
+	private final int queueDepth;
+	private final long sentCount;
+	private final long totalWait;
+	private final long maxWait;
+
+	BridgeLaneStats(BridgeLane lane, int queueDepth, long sentCount,
+			long totalWait, long maxWait) {
+		this.lane = lane;
+		this.queueDepth = queueDepth;
+		this.sentCount = sentCount;
+		this.totalWait = totalWait;
+		this.maxWait = maxWait;
+	}
+
+	public BridgeLane getLane() {
+		return lane;
+	}
+
+	/**
+	 * Returns the number of requests waiting to be sent.
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * Returns the number of requests sent to the browser.
+	 */
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * Returns the average time (in milliseconds) a request waited
+	 * in the queue before it was sent.
+	 */
+	public double getAverageWait() {
+		return sentCount == 0 ? 0 : totalWait / 1e6 / sentCount;
+	}
+
+	/**
+	 * Returns the longest time (in milliseconds) a request waited
+	 * in the queue before it was sent.
+	 */
+	public double getMaxWait() {
+		return maxWait / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return lane + ": depth=" + queueDepth + ", sent=" + sentCount //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", avgWait=" + getAverageWait() + "ms, maxWait=" + getMaxWait() + "ms"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
@@ -0,0 +1,558 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.swt.SWTException;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.widgets.Display;
+import org.mozilla.xpcom.XPCOMException;
+
+/**
+ * Requests of {@link AsyncBridge} pending for a {@link BrowserContext}.
+ * Requests may be submitted from any thread. The queue is flushed in
+ * the next tick of the UI loop (by the {@link BridgeScheduler} of the
+ * display), and the expressions pending at that moment are evaluated
+ * in one script:
+ * <pre>
+ * var r=[];
+ * try{r.push([0,convertNsi(expression0)])}catch(e){r.push([1,''+e])}
+ * try{r.push([0,convertNsi(expression1)])}catch(e){r.push([1,''+e])}
+ * return r;</pre>
+ * So a failing expression fails its own future only. Tasks split
+ * the script, so requests are always executed in the order they were
+ * submitted. If {@link BrowserContext#setReadDedup(boolean) read
+ * deduplication} is enabled, identical reads without other requests
+ * between them are evaluated once.
+ * <P>
+ * Every {@link BridgeLane} has its own queue. A flush takes all
+ * interactive requests and a batch of bulk requests (up to their
+ * {@link #setMaxBatchSize(BridgeLane, int) batch sizes}). If requests
+ * remain, the next flush is scheduled again, so the UI loop handles
+ * its events between the batches.
+ * <P>
+ * When a script runs out of its {@link BrowserContext#setBatchBudget(int)
+ * budget}, its remaining requests are put back into the queue.
+ * <P>
+ * The batch size and the dispatch window may be tuned by a {@link BatchTuner}.
+ * <P>
+ * Synchronous calls made through proxies from other threads are
+ * {@link #dispatch(BridgeRequest, BridgeLane) dispatched} by the same queue.
+ */
+final class BridgeQueue {
+	private static final Executor defaultExecutor
+			= Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "AnyXPCOM completion"); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final BrowserContext context;
+	private final Display display;
+	private final BridgeScheduler scheduler;
+	private final BridgeScheduler.Slot slot;
+	private final LaneQueue[] lanes = new LaneQueue[BridgeLane.values().length];
+	private boolean flushScheduled;
+	/** number of times the requests have been taken, guarded by {@code lanes} */
+	private long takeCount;
+	/** number of requests sent by the current flush */
+	private int flushSentCount;
+	/** notifies listeners of the futures of {@link AsyncBridge} */
+	volatile Executor completionExecutor = defaultExecutor;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	BridgeQueue(BrowserContext context) {
+		this.context = context;
+		this.display = context.getBrowser().getDisplay();
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new LaneQueue();
+		}
+		lanes[BridgeLane.BULK.ordinal()].maxBatchSize = 64;
+		this.scheduler = BridgeScheduler.get(display);
+		this.slot = scheduler.register(this);
+	}
+
+	Browser getBrowser() {
+		return context.getBrowser();
+	}
+
+	int getWeight() {
+		return scheduler.getWeight(slot);
+	}
+
+	void setWeight(int weight) {
+		scheduler.setWeight(slot, weight);
+	}
+
+	/**
+	 * Called when the browser is disposed. Fails all pending requests.
+	 */
+	void dispose() {
+		scheduler.unregister(slot);
+		failAll(drainAll(), new XPCOMException(XPCOM.NS_ERROR_NOT_AVAILABLE,
+				"The browser is disposed"));
+	}
+
+	int getMaxBatchSize(BridgeLane lane) {
+		synchronized (lanes) {
+			return lanes[lane.ordinal()].maxBatchSize;
+		}
+	}
+
+	void setMaxBatchSize(BridgeLane lane, int maxBatchSize) {
+		synchronized (lanes) {
+			lanes[lane.ordinal()].maxBatchSize = maxBatchSize;
+		}
+	}
+
+	BridgeLaneStats getStats(BridgeLane lane) {
+		synchronized (lanes) {
+			LaneQueue queue = lanes[lane.ordinal()];
+			return new BridgeLaneStats(lane, queue.pending.size(),
+					queue.sentCount, queue.totalWait, queue.maxWait);
+		}
+	}
+
+	/**
+	 * Adds the {@code request} to be sent in the next tick of the UI loop.
+	 * May be called from any thread.
+	 */
+	void submit(BridgeRequest<?> request, BridgeLane lane) {
+		if (enqueue(request, lane) >= 0) {
+			try {
+				scheduler.schedule(slot);
+			} catch (SWTException e) {
+				// the display is disposed
+				failAll(drainAll(), e);
+			}
+		}
+	}
+
+	/**
+	 * Adds the {@code request} to the {@code lane}.
+	 *
+	 * @return the number of times the requests have been taken so far
+	 * if the caller has to schedule the flush, {@code -1} otherwise
+	 */
+	private long enqueue(BridgeRequest<?> request, BridgeLane lane) {
+		request.submitTime = System.nanoTime();
+		request.lane = lane;
+		synchronized (lanes) {
+			lanes[lane.ordinal()].pending.add(request);
+			if (flushScheduled) {
+				return -1;
+			}
+			flushScheduled = true;
+			return takeCount;
+		}
+	}
+
+	/**
+	 * Waits for the dispatch {@code window} to pass, or for the requests
+	 * to be taken by a flush.
+	 *
+	 * @return {@code true} if the requests have been taken since
+	 * the {@code takeCount}
+	 */
+	private boolean awaitWindow(int window, long takeCount) throws InterruptedException {
+		long deadline = System.nanoTime() + window * 1000000L;
+		synchronized (lanes) {
+			while (this.takeCount == takeCount) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(lanes, remaining);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Sends the {@code request} from a thread other than the UI thread
+	 * and waits for its result. The first thread finding the queue idle
+	 * waits for {@link BrowserContext#setDispatchWindow(int) the dispatch
+	 * window}, then flushes the queue by {@link Display#syncExec(Runnable)},
+	 * unless the queue has been flushed meanwhile.
+	 * So requests dispatched by several threads within the window are sent
+	 * in one {@code syncExec} and one script.
+	 * <P>
+	 * If the {@link BrowserContext#setCallBudget(int) call budget} is set,
+	 * the queue is flushed by the {@link BridgeScheduler} instead,
+	 * and the caller waits for the result at most the budget. A call
+	 * which is being sent by then is not cancelled, and its result
+	 * is awaited.
+	 * <P>
+	 * A call {@link #cancel(BridgeLane) cancelled} before it is sent
+	 * fails with {@link XPCOM#NS_ERROR_ABORT}, like a call running out
+	 * of its budget.
+	 *
+	 * @return the converted result of the request
+	 */
+	<V> V dispatch(BridgeRequest<V> request, BridgeLane lane) {
+		int budget = context.getCallBudget();
+		long leaderTakeCount = enqueue(request, lane);
+		boolean interrupted = false;
+		try {
+			if (leaderTakeCount >= 0) {
+				int window = context.getDispatchWindow();
+				boolean taken = false;
+				if (window > 0) {
+					try {
+						taken = awaitWindow(window, leaderTakeCount);
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				try {
+					if (taken) {
+						// flushed by the UI thread meanwhile
+					} else if (budget > 0) {
+						scheduler.schedule(slot);
+					} else {
+						display.syncExec(flushTask);
+					}
+				} catch (SWTException e) {
+					// the display is disposed
+					failAll(drainAll(), e);
+				}
+			}
+			while (true) {
+				try {
+					if (budget <= 0) {
+						return request.future.get();
+					}
+					long remaining = request.submitTime + budget * 1000000L - System.nanoTime();
+					return request.future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+				} catch (TimeoutException e) {
+					if (request.future.cancel(false)) {
+						throw new XPCOMException(XPCOM.NS_ERROR_ABORT,
+								"The call has run out of its budget of " + budget + "ms");
+					}
+					// being sent or completed meanwhile, so its result is coming
+					budget = 0;
+				} catch (CancellationException e) {
+					XPCOMException exception = new XPCOMException(XPCOM.NS_ERROR_ABORT,
+							"The call has been cancelled");
+					exception.initCause(e);
+					throw exception;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new RuntimeException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Sends all pending requests to the browser. Called on the UI thread.
+	 */
+	void flush() {
+		long start = System.nanoTime();
+		flushSentCount = 0;
+		try {
+			sendBatch();
+		} finally {
+			scheduler.charge(slot, System.nanoTime() - start, flushSentCount);
+			context.getBatchTuner().tune(context);
+		}
+	}
+
+	private void sendBatch() {
+		List<BridgeRequest<?>> requests = takeBatch();
+		if (context.getBrowser().isDisposed()) {
+			failAll(requests, new XPCOMException(XPCOM.NS_ERROR_NOT_AVAILABLE,
+					"The browser is disposed"));
+			return;
+		}
+		// expressions since the last task, evaluated in one script
+		List<BridgeRequest.Expression<?>> expressions = new ArrayList<BridgeRequest.Expression<?>>();
+		for (int i = 0; i <= requests.size(); i++) {
+			BridgeRequest<?> request = i < requests.size() ? requests.get(i) : null;
+			if (request instanceof BridgeRequest.Expression) {
+				expressions.add((BridgeRequest.Expression<?>) request);
+				continue;
+			}
+			List<BridgeRequest<?>> skipped = evaluate(expressions);
+			if (!skipped.isEmpty()) {
+				// the batch has run out of its budget, yield to the UI loop
+				skipped.addAll(requests.subList(i, requests.size()));
+				requeue(skipped);
+				return;
+			}
+			expressions.clear();
+			if (request instanceof BridgeRequest.Task && request.future.markSent()) {
+				recordSent(request, System.nanoTime());
+				((BridgeRequest.Task<?>) request).run();
+			}
+		}
+	}
+
+	/**
+	 * Cancels all requests of the {@code lane} which have not been sent yet.
+	 *
+	 * @return the number of the cancelled requests
+	 */
+	int cancel(BridgeLane lane) {
+		List<BridgeRequest<?>> requests;
+		synchronized (lanes) {
+			LaneQueue queue = lanes[lane.ordinal()];
+			requests = new ArrayList<BridgeRequest<?>>(queue.pending);
+			queue.pending.clear();
+		}
+		int cancelled = 0;
+		for (BridgeRequest<?> request : requests) {
+			if (request.future.cancel(false)) {
+				cancelled++;
+			}
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Takes the requests to be sent by a flush, and schedules the next
+	 * flush if some requests remain in the queue.
+	 */
+	private List<BridgeRequest<?>> takeBatch() {
+		List<BridgeRequest<?>> requests = new ArrayList<BridgeRequest<?>>();
+		boolean remaining = false;
+		synchronized (lanes) {
+			for (LaneQueue lane : lanes) {
+				int count = lane.pending.size();
+				if (lane.maxBatchSize > 0 && count > lane.maxBatchSize) {
+					count = lane.maxBatchSize;
+					remaining = true;
+				}
+				for (int i = 0; i < count; i++) {
+					requests.add(lane.pending.poll());
+				}
+			}
+			flushScheduled = remaining;
+			takeCount++;
+			lanes.notifyAll();
+		}
+		if (remaining) {
+			scheduler.schedule(slot);
+		}
+		return requests;
+	}
+
+	/**
+	 * Puts the {@code requests} back to the heads of their lanes,
+	 * and schedules the flush.
+	 */
+	private void requeue(List<BridgeRequest<?>> requests) {
+		synchronized (lanes) {
+			for (int i = requests.size() - 1; i >= 0; i--) {
+				BridgeRequest<?> request = requests.get(i);
+				lanes[request.lane.ordinal()].pending.addFirst(request);
+			}
+			if (flushScheduled) {
+				return;
+			}
+			flushScheduled = true;
+		}
+		scheduler.schedule(slot);
+	}
+
+	private List<BridgeRequest<?>> drainAll() {
+		List<BridgeRequest<?>> requests = new ArrayList<BridgeRequest<?>>();
+		synchronized (lanes) {
+			for (LaneQueue lane : lanes) {
+				requests.addAll(lane.pending);
+				lane.pending.clear();
+			}
+			flushScheduled = false;
+			takeCount++;
+			lanes.notifyAll();
+		}
+		return requests;
+	}
+
+	/**
+	 * Updates the metrics of the lane of the {@code request}
+	 * sent at the {@code time}.
+	 */
+	private void recordSent(BridgeRequest<?> request, long time) {
+		long wait = time - request.submitTime;
+		flushSentCount++;
+		if (request.lane == BridgeLane.INTERACTIVE) {
+			context.getBatchTuner().sampleInteractiveWait(wait);
+		}
+		synchronized (lanes) {
+			LaneQueue lane = lanes[request.lane.ordinal()];
+			lane.sentCount++;
+			lane.totalWait += wait;
+			lane.maxWait = Math.max(lane.maxWait, wait);
+		}
+	}
+
+	/**
+	 * Evaluates the expressions of the {@code requests} in one script
+	 * and completes their futures. If the {@link
+	 * BrowserContext#setBatchBudget(int) budget} is set, the script
+	 * checks it before every expression but the first one, and skips
+	 * the remaining expressions when the budget is exhausted.
+	 *
+	 * @return the skipped requests
+	 */
+	private List<BridgeRequest<?>> evaluate(List<BridgeRequest.Expression<?>> requests) {
+		boolean dedup = context.isReadDedup();
+		int budget = context.getBatchBudget();
+		StringBuilder script = new StringBuilder(budget > 0 ? "var t=Date.now(),r=[];" : "var r=[];");
+		List<BridgeRequest.Expression<?>> sent
+				= new ArrayList<BridgeRequest.Expression<?>>(requests.size());
+		// index of the result of every sent request
+		List<Integer> slots = new ArrayList<Integer>(requests.size());
+		// expressions of the results, null for other than reads
+		List<String> expressions = new ArrayList<String>(requests.size());
+		// results of reads since the last request of other kind
+		Map<String, Integer> reads = new HashMap<String, Integer>();
+		boolean readOnly = dedup;
+		for (BridgeRequest.Expression<?> request : requests) {
+			if (!request.future.markSent()) {
+				continue; // cancelled
+			}
+			int start = script.length();
+			try {
+				if (budget > 0 && !expressions.isEmpty()) {
+					script.append("if(Date.now()-t>").append(budget).append(")r.push([2]);else ");
+				}
+				script.append("try{r.push([0,convertNsi(");
+				int expressionStart = script.length();
+				request.appendExpression(script);
+				String expression = null;
+				if (dedup && request.isRead()) {
+					expression = script.substring(expressionStart);
+					// the cache holds values from before the writes of this script
+					Object value = readOnly ? context.getCachedRead(expression) : ReadCache.MISS;
+					Integer slot = reads.get(expression);
+					if (value != ReadCache.MISS || slot != null) {
+						script.setLength(start);
+						if (slot == null) {
+							recordSent(request, System.nanoTime());
+							convertAndComplete(request, value);
+						} else {
+							sent.add(request);
+							slots.add(slot);
+						}
+						continue;
+					}
+					reads.put(expression, expressions.size());
+				} else {
+					reads.clear();
+					readOnly = false;
+				}
+				script.append(")])}catch(e){r.push([1,''+e])}");
+				sent.add(request);
+				slots.add(expressions.size());
+				expressions.add(expression);
+			} catch (RuntimeException e) {
+				script.setLength(start);
+				request.future.fail(e);
+			}
+		}
+		if (sent.isEmpty()) {
+			return Collections.emptyList();
+		}
+		script.append("return r;");
+		context.getBatchTuner().sampleRequests(script.length(), expressions.size());
+
+		long sendTime = System.nanoTime();
+		Object[] results;
+		try {
+			results = (Object[]) context.evaluateBatch(script.toString(), readOnly);
+		} catch (RuntimeException e) {
+			failAll(sent, e);
+			return Collections.emptyList();
+		}
+		List<BridgeRequest<?>> skipped = Collections.emptyList();
+		for (int i = 0; i < sent.size(); i++) {
+			BridgeRequest.Expression<?> request = sent.get(i);
+			Object[] result = (Object[]) results[slots.get(i)];
+			if (((Number) result[0]).intValue() == 2) {
+				if (skipped.isEmpty()) {
+					skipped = new ArrayList<BridgeRequest<?>>();
+				}
+				request.future.markUnsent();
+				skipped.add(request);
+			} else {
+				recordSent(request, sendTime);
+				complete(request, result);
+			}
+		}
+		if (readOnly) {
+			for (int i = 0; i < expressions.size(); i++) {
+				Object[] result = (Object[]) results[i];
+				if (((Number) result[0]).intValue() == 0) {
+					context.cacheRead(expressions.get(i), result[1]);
+				}
+			}
+		}
+		return skipped;
+	}
+
+	private <V> void complete(BridgeRequest.Expression<V> request, Object[] result) {
+		if (((Number) result[0]).intValue() != 0) {
+			request.future.fail(new XPCOMException(String.valueOf(result[1])));
+			return;
+		}
+		convertAndComplete(request, result[1]);
+	}
+
+	private <V> void convertAndComplete(BridgeRequest.Expression<V> request, Object result) {
+		V value;
+		try {
+			value = request.convert(result, context.getBrowser());
+		} catch (RuntimeException e) {
+			request.future.fail(e);
+			return;
+		}
+		request.future.complete(value);
+	}
+
+	private static void failAll(List<? extends BridgeRequest<?>> requests, Throwable failure) {
+		for (BridgeRequest<?> request : requests) {
+			request.future.fail(failure);
+		}
+	}
+
+	private static final class LaneQueue {
+		final ArrayDeque<BridgeRequest<?>> pending = new ArrayDeque<BridgeRequest<?>>();
+		/** {@code 0} means no limit */
+		int maxBatchSize;
+		long sentCount;
+		/* in nanoseconds */
+		long totalWait;
+		long maxWait;
+	}
+}
@@ -0,0 +1,71 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.concurrent.Callable;
+
+import org.eclipse.swt.browser.Browser;
+
+/**
+ * Request queued in a {@link BridgeQueue}: either an {@link Expression},
+ * which is evaluated in one script with the other pending expressions,
+ * or a {@link Task}.
+ */
+abstract class BridgeRequest<V> {
+	final BridgeFuture<V> future;
+	/** {@link System#nanoTime()} when the request was queued */
+	long submitTime;
+	BridgeLane lane;
+
+	BridgeRequest(BridgeFuture<V> future) {
+		this.future = future;
+	}
+
+	/**
+	 * Request evaluating a JS expression and converting its value.
+	 */
+	abstract static class Expression<V> extends BridgeRequest<V> {
+		Expression(BridgeFuture<V> future) {
+			super(future);
+		}
+
+		/**
+		 * Appends the JS expression of the request to the {@code script}.
+		 * Called on the UI thread, may throw if the request cannot be sent
+		 * (e.g. its proxy is stale).
+		 */
+		abstract void appendExpression(StringBuilder script);
+
+		/**
+		 * Converts the value of the expression, on the UI thread.
+		 */
+		abstract V convert(Object value, Browser browser);
+
+		/**
+		 * Returns {@code true} if the expression only reads the document,
+		 * so identical reads may share the result.
+		 */
+		boolean isRead() {
+			return false;
+		}
+	}
+
+	/**
+	 * Request running Java code on the UI thread, between the scripts
+	 * of the expressions queued before and after it.
+	 */
+	static final class Task<V> extends BridgeRequest<V> {
+		private final Callable<V> callable;
+
+		Task(BridgeFuture<V> future, Callable<V> callable) {
+			super(future);
+			this.callable = callable;
+		}
+
+		void run() {
+			try {
+				future.complete(callable.call());
+			} catch (Throwable e) {
+				future.fail(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Schedules the flushes of the {@link BridgeQueue}s of all browsers
+ * of a {@link Display}. Every browser gets a share of the UI thread
+ * proportional to its {@link BrowserContext#setSchedulingWeight(int)
+ * weight}: the scheduler measures the time of every flush, and always
+ * flushes the ready browser which has used the least time divided
+ * by the weight (like weighted fair queuing). Within a tick of the UI
+ * loop, the scheduler flushes browsers until its {@link #setTickBudget(int)
+ * budget} is spent, and then yields to the UI loop. So one busy browser
+ * cannot starve the others.
+ * <P>
+ * Synchronous calls dispatched from other threads without a call budget
+ * flush their browser directly, but their time is charged to it all
+ * the same.
+ */
+public final class BridgeScheduler {
+	private static final Map<Display, BridgeScheduler> schedulers
+			= new HashMap<Display, BridgeScheduler>();
+	private static final long THROUGHPUT_WINDOW = 1000000000L;
+
+	private final Display display;
+	private final Set<Slot> slots = new LinkedHashSet<Slot>();
+	private final Set<Slot> ready = new LinkedHashSet<Slot>();
+	/** virtual time of the last flushed slot */
+	private long virtualClock;
+	private boolean tickScheduled;
+	private volatile int tickBudget = 10;
+
+	private final Runnable tickTask = new Runnable() {
+		public void run() {
+			tick();
+		}
+	};
+
+	private BridgeScheduler(Display display) {
+		this.display = display;
+	}
+
+	/**
+	 * Returns the scheduler of the {@code display}. Must be called
+	 * on the UI thread.
+	 */
+	public static BridgeScheduler get(final Display display) {
+		synchronized (schedulers) {
+			BridgeScheduler scheduler = schedulers.get(display);
+			if (scheduler == null) {
+				scheduler = new BridgeScheduler(display);
+				schedulers.put(display, scheduler);
+				display.disposeExec(new Runnable() {
+					public void run() {
+						synchronized (schedulers) {
+							schedulers.remove(display);
+						}
+					}
+				});
+			}
+			return scheduler;
+		}
+	}
+
+	public int getTickBudget() {
+		return tickBudget;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) the scheduler may spend flushing
+	 * browsers in one tick of the UI loop. At least one browser
+	 * is flushed per tick.
+	 */
+	public void setTickBudget(int tickBudget) {
+		this.tickBudget = tickBudget;
+	}
+
+	/**
+	 * Returns the statistics of all browsers of the display.
+	 */
+	public synchronized List<BrowserStats> getStats() {
+		long now = System.nanoTime();
+		List<BrowserStats> stats = new ArrayList<BrowserStats>(slots.size());
+		for (Slot slot : slots) {
+			stats.add(new BrowserStats(slot.queue.getBrowser(), slot.weight,
+					slot.sentCount, slot.busyTime, slot.getThroughput(now)));
+		}
+		return stats;
+	}
+
+	synchronized Slot register(BridgeQueue queue) {
+		Slot slot = new Slot(queue);
+		slots.add(slot);
+		return slot;
+	}
+
+	synchronized void unregister(Slot slot) {
+		slots.remove(slot);
+		ready.remove(slot);
+	}
+
+	synchronized void setWeight(Slot slot, int weight) {
+		slot.weight = Math.max(weight, 1);
+	}
+
+	synchronized int getWeight(Slot slot) {
+		return slot.weight;
+	}
+
+	/**
+	 * Makes the queue of the {@code slot} to be flushed in one
+	 * of the next ticks. May be called from any thread.
+	 */
+	void schedule(Slot slot) {
+		synchronized (this) {
+			if (!slots.contains(slot) || !ready.add(slot)) {
+				return;
+			}
+			// a queue becoming ready after a pause gets no credit for it
+			slot.virtualTime = Math.max(slot.virtualTime, virtualClock);
+			if (tickScheduled) {
+				return;
+			}
+			tickScheduled = true;
+		}
+		display.asyncExec(tickTask);
+	}
+
+	/**
+	 * Charges the {@code slot} with a flush which has taken
+	 * the {@code time} (in nanoseconds) and sent {@code count} requests.
+	 */
+	synchronized void charge(Slot slot, long time, int count) {
+		slot.virtualTime += time / slot.weight;
+		slot.busyTime += time;
+		slot.sentCount += count;
+		long now = System.nanoTime();
+		if (now - slot.windowStart >= THROUGHPUT_WINDOW) {
+			slot.lastThroughput = slot.windowCount * 1e9 / (now - slot.windowStart);
+			slot.windowStart = now;
+			slot.windowCount = 0;
+		}
+		slot.windowCount += count;
+	}
+
+	private void tick() {
+		long deadline = System.nanoTime() + tickBudget * 1000000L;
+		try {
+			do {
+				Slot next;
+				synchronized (this) {
+					next = null;
+					for (Slot slot : ready) {
+						if (next == null || slot.virtualTime < next.virtualTime) {
+							next = slot;
+						}
+					}
+					if (next == null) {
+						return;
+					}
+					ready.remove(next);
+					virtualClock = next.virtualTime;
+				}
+				next.queue.flush();
+			} while (System.nanoTime() < deadline);
+		} finally {
+			// also if a flush has thrown, so the other browsers are flushed
+			boolean remaining;
+			synchronized (this) {
+				remaining = !ready.isEmpty();
+				tickScheduled = remaining;
+			}
+			if (remaining) {
+				display.asyncExec(tickTask);
+			}
+		}
+	}
+
+	/**
+	 * State of a browser in the scheduler, guarded by the scheduler.
+	 */
+	static final class Slot {
+		final BridgeQueue queue;
+		int weight = 1;
+		long virtualTime;
+		long sentCount;
+		long busyTime;
+		long windowStart = System.nanoTime();
+		int windowCount;
+		double lastThroughput;
+
+		Slot(BridgeQueue queue) {
+			this.queue = queue;
+		}
+
+		double getThroughput(long now) {
+			return now - windowStart >= THROUGHPUT_WINDOW
+					? windowCount * 1e9 / (now - windowStart) : lastThroughput;
+		}
+	}
+
+	/**
+	 * Snapshot of the statistics of a browser in the scheduler.
+	 */
+	public static final class BrowserStats {
+		private final Browser browser;
+		private final int weight;
+		private final long sentCount;
+		private final long busyTime;
+		private final double throughput;
+
+		BrowserStats(Browser browser, int weight, long sentCount,
+				long busyTime, double throughput) {
+			this.browser = browser;
+			this.weight = weight;
+			this.sentCount = sentCount;
+			this.busyTime = busyTime;
+			this.throughput = throughput;
+		}
+
+		public Browser getBrowser() {
+			return browser;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		/**
+		 * Returns the number of requests sent to the browser.
+		 */
+		public long getSentCount() {
+			return sentCount;
+		}
+
+		/**
+		 * Returns the time (in milliseconds) the UI thread has spent
+		 * flushing the requests of the browser.
+		 */
+		public double getBusyTime() {
+			return busyTime / 1e6;
+		}
+
+		/**
+		 * Returns the number of requests sent per second, measured over
+		 * the last second.
+		 */
+		public double getThroughput() {
+			return throughput;
+		}
+
+		@Override
+		public String toString() {
+			return "weight=" + weight + ", sent=" + sentCount //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", busy=" + getBusyTime() + "ms, throughput=" + throughput + "/s"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+}
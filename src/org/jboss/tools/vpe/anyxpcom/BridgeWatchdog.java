@@ -0,0 +1,134 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records scripts of a browser which have run longer than their budgets,
+ * see {@link BrowserContext#setCallBudget(int)} and
+ * {@link BrowserContext#setBatchBudget(int)}. The last overruns are kept,
+ * and listeners are notified of every overrun on the UI thread.
+ */
+public final class BridgeWatchdog {
+	private static final int MAX_OVERRUNS = 64;
+	private static final int MAX_SCRIPT_LENGTH = 1024;
+
+	/**
+	 * Listener of overruns. It is called on the UI thread right after
+	 * the script, so it has to be fast.
+	 */
+	public interface Listener {
+		void overrun(Overrun overrun);
+	}
+
+	/**
+	 * Script which has run longer than its budget.
+	 */
+	public static final class Overrun {
+		private final String script;
+		private final long elapsed;
+		private final int budget;
+		private final long time;
+
+		Overrun(String script, long elapsed, int budget, long time) {
+			this.script = script;
+			this.elapsed = elapsed;
+			this.budget = budget;
+			this.time = time;
+		}
+
+		/**
+		 * Returns the script generated by the bridge (without deferred
+		 * calls and releases preceding it), possibly truncated.
+		 */
+		public String getScript() {
+			return script;
+		}
+
+		/**
+		 * Returns the time (in milliseconds) the script has run.
+		 */
+		public double getElapsed() {
+			return elapsed / 1e6;
+		}
+
+		/**
+		 * Returns the budget (in milliseconds) of the script.
+		 */
+		public int getBudget() {
+			return budget;
+		}
+
+		/**
+		 * Returns the time of the overrun, as {@link System#currentTimeMillis()}.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			return getElapsed() + "ms > " + budget + "ms: " + script; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	private final LinkedList<Overrun> overruns = new LinkedList<Overrun>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private long overrunCount;
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns the last overruns, the oldest first.
+	 */
+	public synchronized List<Overrun> getOverruns() {
+		return new ArrayList<Overrun>(overruns);
+	}
+
+	/**
+	 * Returns the number of all overruns recorded.
+	 */
+	public synchronized long getOverrunCount() {
+		return overrunCount;
+	}
+
+	public synchronized void clear() {
+		overruns.clear();
+		overrunCount = 0;
+	}
+
+	/**
+	 * Records an overrun if the {@code script} has run longer than
+	 * the {@code budget} ({@code 0} means no budget). The {@code script}
+	 * is copied only if it is recorded, and then truncated.
+	 *
+	 * @param elapsed in nanoseconds
+	 */
+	void check(CharSequence script, long elapsed, int budget) {
+		if (budget <= 0 || elapsed <= budget * 1000000L) {
+			return;
+		}
+		String text = script.length() > MAX_SCRIPT_LENGTH
+				? script.subSequence(0, MAX_SCRIPT_LENGTH) + "..." //$NON-NLS-1$
+				: script.toString();
+		Overrun overrun = new Overrun(text, elapsed, budget, System.currentTimeMillis());
+		synchronized (this) {
+			if (overruns.size() == MAX_OVERRUNS) {
+				overruns.removeFirst();
+			}
+			overruns.add(overrun);
+			overrunCount++;
+		}
+		for (Listener listener : listeners) {
+			listener.overrun(overrun);
+		}
+	}
+}
@@ -0,0 +1,814 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import org.eclipse.swt.SWTException;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.browser.LocationAdapter;
+import org.eclipse.swt.browser.LocationEvent;
+import org.eclipse.swt.events.DisposeEvent;
+import org.eclipse.swt.events.DisposeListener;
+import org.mozilla.xpcom.XPCOMException;
+
+/**
+ * State kept by {@link AnyXPCOM} for a {@link Browser}.
+ * <P>
+ * All scripts are sent to the browser through the context. When deferred
+ * writes are enabled, void calls made through proxies are not evaluated
+ * immediately, but queued and sent as one script. The queue is flushed
+ * <ul>
+ * <li>before the first non-void call (in the same script with it),</li>
+ * <li>on {@link #flush()},</li>
+ * <li>when it holds {@link #setMaxDeferredCalls(int) too many calls}
+ * or {@link #setMaxDeferredLength(int) too long script},</li>
+ * <li>when its first call waits longer than
+ * {@link #setMaxDeferredDelay(int) the allowed delay}.</li>
+ * </ul>
+ * So the calls are always executed in the order they were made.
+ * <P>
+ * When read deduplication is enabled, identical reads made in the same
+ * tick of the UI loop are evaluated once, see {@link #setReadDedup(boolean)}.
+ * <P>
+ * Dependent calls may be sent in one script by a {@link BridgeBatch}.
+ * <P>
+ * Scripts running longer than their {@link #setCallBudget(int) budgets}
+ * are recorded by the {@link #getWatchdog() watchdog}. Batch sizes may be
+ * {@link #setLatencyTarget(int) tuned} by the measured cost of the scripts.
+ * <P>
+ * Ids of proxies collected by the garbage collector are released
+ * in {@code nsiArray} by the next script sent to the browser.
+ * <P>
+ * Every document gets its own epoch. When the browser navigates,
+ * the epoch changes and all proxies of the previous document become
+ * stale: they fail without calling the browser.
+ * <P>
+ * Like the {@link Browser} itself, the context must be accessed
+ * from the UI thread only. Proxies may be used from any thread though:
+ * calls made from other threads are dispatched to the UI thread, see
+ * {@link #setDispatchWindow(int)}.
+ *
+ * @see AnyXPCOM#getContext(Browser)
+ */
+public final class BrowserContext {
+	private static final String DATA_KEY = BrowserContext.class.getName();
+	private static final int MAX_CONTEXTS = 0x10000;
+
+	/* Contexts by their indices, which are packed into the handles
+	 * of proxies. Indices of disposed browsers are reused. */
+	private static volatile BrowserContext[] contexts = new BrowserContext[4];
+	/* The last epochs of disposed contexts, to be continued by contexts
+	 * reusing their indices. So proxies of a disposed browser stay stale. */
+	private static int[] lastEpochs = new int[4];
+
+	private final Browser browser;
+	private final int index;
+	private final WriteQueue writeQueue = new WriteQueue();
+	private final HandleTracker handleTracker = new HandleTracker();
+	private final ReadCache readCache = new ReadCache();
+	private final BridgeWatchdog watchdog = new BridgeWatchdog();
+	private final BatchTuner batchTuner = new BatchTuner();
+	private final Thread uiThread;
+	private final BridgeQueue bridgeQueue;
+	private final AsyncBridge asyncBridge;
+	private final BinaryChannel binaryChannel = new BinaryChannel(this);
+	private final TypeCache typeCache = new TypeCache();
+	/** the open batch, if any */
+	private BridgeBatch batch;
+	/** epoch of the current document, {@code 0} until the first {@link AnyXPCOM#initBrowser} */
+	/* read by proxies on any thread */
+	private volatile int epoch;
+	private int lastEpoch;
+	private boolean compactHandles;
+	private boolean deferredWrites;
+	private boolean lazyChaining;
+	private boolean readDedup;
+	private boolean jsonResults;
+	private int maxDeferredCalls = 256;
+	private int maxDeferredLength = 64 * 1024;
+	private int maxDeferredDelay = 50;
+	private boolean flushScheduled;
+	private volatile int dispatchWindow = 1;
+	private volatile int callBudget;
+	private volatile int batchBudget;
+	private volatile int latencyTarget;
+
+	private final Runnable flushTimer = new Runnable() {
+		public void run() {
+			flushScheduled = false;
+			if (browser.isDisposed() || writeQueue.isEmpty()) {
+				return;
+			}
+			long waited = System.currentTimeMillis() - writeQueue.getFirstCallTime();
+			if (waited >= maxDeferredDelay) {
+				flush();
+			} else {
+				scheduleFlush((int) (maxDeferredDelay - waited));
+			}
+		}
+	};
+
+	private final Runnable readCacheCleaner = new Runnable() {
+		public void run() {
+			readCache.clear();
+		}
+	};
+
+	private BrowserContext(Browser browser) {
+		this.browser = browser;
+		this.uiThread = browser.getDisplay().getThread();
+		this.bridgeQueue = new BridgeQueue(this);
+		this.asyncBridge = new AsyncBridge(bridgeQueue, BridgeLane.INTERACTIVE);
+		synchronized (BrowserContext.class) {
+			this.index = register(this);
+			this.lastEpoch = lastEpochs[index];
+		}
+	}
+
+	private static int register(BrowserContext context) {
+		BrowserContext[] registered = contexts;
+		for (int i = 0; i < registered.length; i++) {
+			if (registered[i] == null) {
+				registered[i] = context;
+				return i;
+			}
+		}
+		if (registered.length == MAX_CONTEXTS) {
+			throw new IllegalStateException("Too many browsers"); //$NON-NLS-1$
+		}
+		int index = registered.length;
+		BrowserContext[] grown = new BrowserContext[Math.min(index * 2, MAX_CONTEXTS)];
+		System.arraycopy(registered, 0, grown, 0, index);
+		grown[index] = context;
+		int[] grownEpochs = new int[grown.length];
+		System.arraycopy(lastEpochs, 0, grownEpochs, 0, index);
+		lastEpochs = grownEpochs;
+		contexts = grown;
+		return index;
+	}
+
+	private static synchronized void unregister(BrowserContext context) {
+		contexts[context.index] = null;
+		lastEpochs[context.index] = context.lastEpoch;
+	}
+
+	/**
+	 * Returns the context with the {@code index}, or {@code null}
+	 * if its browser is disposed.
+	 */
+	static BrowserContext byIndex(int index) {
+		BrowserContext[] registered = contexts;
+		return index < registered.length ? registered[index] : null;
+	}
+
+	/**
+	 * Returns the context of the {@code browser}, creating it if necessary.
+	 */
+	static BrowserContext get(Browser browser) {
+		BrowserContext context = (BrowserContext) browser.getData(DATA_KEY);
+		if (context == null) {
+			context = new BrowserContext(browser);
+			browser.setData(DATA_KEY, context);
+			final BrowserContext newContext = context;
+			browser.addLocationListener(new LocationAdapter() {
+				@Override
+				public void changed(LocationEvent event) {
+					if (event.top) {
+						newContext.locationChanged();
+					}
+				}
+			});
+			browser.addDisposeListener(new DisposeListener() {
+				public void widgetDisposed(DisposeEvent e) {
+					unregister(newContext);
+					newContext.bridgeQueue.dispose();
+				}
+			});
+		}
+		return context;
+	}
+
+	public Browser getBrowser() {
+		return browser;
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	public boolean isDeferredWrites() {
+		return deferredWrites;
+	}
+
+	/**
+	 * Enables or disables deferring of void calls. Pending calls are flushed
+	 * when the deferring is disabled.
+	 */
+	public void setDeferredWrites(boolean deferredWrites) {
+		this.deferredWrites = deferredWrites;
+		if (!deferredWrites) {
+			flush();
+		}
+	}
+
+	public boolean isLazyChaining() {
+		return lazyChaining;
+	}
+
+	/**
+	 * Enables or disables lazy chaining of getters. When it is enabled,
+	 * getters returning interfaces do not call the browser, but return
+	 * proxies remembering the JS path to the value, like
+	 * {@code nsiArray[3].document.documentElement}. The path is evaluated
+	 * (in one call for the whole chain) only when a primitive value
+	 * is requested from it, or when the proxy is pinned by
+	 * {@link NumeratedNsi#getNsiId()}, {@code equals} or {@code hashCode}.
+	 * <P>
+	 * Note that the getters are evaluated at that moment, not when they
+	 * are called in Java, and a proxy of a {@code null} value
+	 * is not {@code null}.
+	 */
+	public void setLazyChaining(boolean lazyChaining) {
+		this.lazyChaining = lazyChaining;
+	}
+
+	public boolean isReadDedup() {
+		return readDedup;
+	}
+
+	/**
+	 * Enables or disables deduplication of reads. A read is a getter or
+	 * a method like {@code item(index)}, {@code getAttribute(name)} or
+	 * {@code hasChildNodes()}. When deduplication is enabled, a read of
+	 * the same object with the same arguments is evaluated once per tick
+	 * of the UI loop, and its result is shared. Identical reads sent in
+	 * one script (by {@link AsyncBridge} or from other threads) are
+	 * evaluated once, too.
+	 * <P>
+	 * Any other call made through the context (a void call, a method
+	 * like {@code appendChild(node)}, or
+	 * {@link AnyXPCOM#queryInterface(String, Class, Browser)}) may change
+	 * the document, so it drops all shared results.
+	 * <P>
+	 * Scripts run by the browser directly are not seen by the context.
+	 * So scripts changing the document have to be run by
+	 * {@link AnyXPCOM#execute(String, Browser)} or
+	 * {@link AnyXPCOM#evaluate(String, Browser)}, or be followed by
+	 * {@link #invalidateReads()}.
+	 */
+	public void setReadDedup(boolean readDedup) {
+		this.readDedup = readDedup;
+		if (!readDedup) {
+			readCache.clear();
+		}
+	}
+
+	/**
+	 * Drops the results of reads shared in the current tick,
+	 * see {@link #setReadDedup(boolean)}.
+	 */
+	public void invalidateReads() {
+		readCache.clear();
+	}
+
+	public boolean isJsonResults() {
+		return jsonResults;
+	}
+
+	/**
+	 * Enables or disables JSON encoding of the results of scripts, see
+	 * {@link WireFormat}. When it is enabled, every script returns one
+	 * string which is decoded by the bridge, so handles are not confused
+	 * with strings like {@code "nsiId=1"}, and SWT does not convert
+	 * graphs of arrays. Shared results of reads are dropped when the
+	 * encoding changes, as their handles are encoded the other way.
+	 */
+	public void setJsonResults(boolean jsonResults) {
+		if (this.jsonResults != jsonResults) {
+			readCache.clear();
+		}
+		this.jsonResults = jsonResults;
+	}
+
+	public int getMaxDeferredCalls() {
+		return maxDeferredCalls;
+	}
+
+	public void setMaxDeferredCalls(int maxDeferredCalls) {
+		this.maxDeferredCalls = maxDeferredCalls;
+	}
+
+	public int getMaxDeferredLength() {
+		return maxDeferredLength;
+	}
+
+	/**
+	 * Sets the maximal length (in characters) of the script of deferred calls.
+	 */
+	public void setMaxDeferredLength(int maxDeferredLength) {
+		this.maxDeferredLength = maxDeferredLength;
+	}
+
+	public int getMaxDeferredDelay() {
+		return maxDeferredDelay;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) a deferred call may wait
+	 * for the flush.
+	 */
+	public void setMaxDeferredDelay(int maxDeferredDelay) {
+		this.maxDeferredDelay = maxDeferredDelay;
+	}
+
+	/**
+	 * Sends all deferred calls to the browser.
+	 */
+	public void flush() {
+		if (writeQueue.isEmpty() || browser.isDisposed()) {
+			return;
+		}
+		try {
+			run("", batchBudget);
+		} catch (SWTException e) {
+			// XXX errors of separate calls are caught by the script itself
+		}
+		batchTuner.tune(this);
+	}
+
+	public int getDispatchWindow() {
+		return dispatchWindow;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) a call made through a proxy from
+	 * a thread other than the UI thread waits for calls of other threads.
+	 * All calls arriving within the window are sent to the UI thread
+	 * in one {@code syncExec} and evaluated in one script. The window
+	 * may be set from any thread.
+	 */
+	public void setDispatchWindow(int dispatchWindow) {
+		this.dispatchWindow = dispatchWindow;
+	}
+
+	public int getSchedulingWeight() {
+		return bridgeQueue.getWeight();
+	}
+
+	/**
+	 * Sets the share of the UI thread the browser gets for its requests
+	 * relative to the other browsers of the display (1 by default),
+	 * see {@link BridgeScheduler}. The weight may be set from any thread.
+	 */
+	public void setSchedulingWeight(int weight) {
+		bridgeQueue.setWeight(weight);
+	}
+
+	public int getMaxBatchSize(BridgeLane lane) {
+		return bridgeQueue.getMaxBatchSize(lane);
+	}
+
+	/**
+	 * Sets the maximal number of requests of the {@code lane} sent
+	 * in one script ({@code 0} means no limit). By default, interactive
+	 * requests are not limited, and bulk requests are sent by 64.
+	 * The size may be set from any thread.
+	 */
+	public void setMaxBatchSize(BridgeLane lane, int maxBatchSize) {
+		bridgeQueue.setMaxBatchSize(lane, maxBatchSize);
+	}
+
+	/**
+	 * Returns the current queue depth and the wait times of the requests
+	 * of the {@code lane}. May be called from any thread.
+	 */
+	public BridgeLaneStats getLaneStats(BridgeLane lane) {
+		return bridgeQueue.getStats(lane);
+	}
+
+	public int getCallBudget() {
+		return callBudget;
+	}
+
+	/**
+	 * Sets the time budget (in milliseconds) of a call, {@code 0} (the
+	 * default) means no budget. A script cannot be interrupted, so calls
+	 * made on the UI thread running longer are only recorded by the
+	 * {@link #getWatchdog() watchdog}. But a call made from another thread
+	 * waits for the UI thread at most the budget. Then it fails with
+	 * {@link XPCOM#NS_ERROR_ABORT}, and is dropped if it has not been
+	 * sent yet. The budget may be set from any thread.
+	 */
+	public void setCallBudget(int callBudget) {
+		this.callBudget = callBudget;
+	}
+
+	public int getBatchBudget() {
+		return batchBudget;
+	}
+
+	/**
+	 * Sets the time budget (in milliseconds) of a script combining several
+	 * calls, i.e. deferred calls or requests sent by {@link AsyncBridge}
+	 * or from other threads. {@code 0} (the default) means no budget.
+	 * When the requests have run out of the budget, the remaining ones
+	 * are not evaluated, but put back into their queues to be sent in
+	 * the next tick of the UI loop. Overruns are recorded by the
+	 * {@link #getWatchdog() watchdog}. The budget may be set from
+	 * any thread.
+	 */
+	public void setBatchBudget(int batchBudget) {
+		this.batchBudget = batchBudget;
+	}
+
+	/**
+	 * Returns the watchdog recording the scripts overrunning their budgets.
+	 */
+	public BridgeWatchdog getWatchdog() {
+		return watchdog;
+	}
+
+	public int getLatencyTarget() {
+		return latencyTarget;
+	}
+
+	/**
+	 * Sets the latency (in milliseconds) targeted for interactive requests,
+	 * {@code 0} (the default) means none. When the target is set, the
+	 * {@link #getBatchTuner() tuner} adjusts the batch size of the bulk lane
+	 * and the dispatch window to the measured cost of the scripts,
+	 * overriding the values set explicitly. The target may be set from
+	 * any thread.
+	 */
+	public void setLatencyTarget(int latencyTarget) {
+		this.latencyTarget = latencyTarget;
+	}
+
+	/**
+	 * Returns the tuner of the thresholds, which keeps the measured
+	 * costs and the changes made.
+	 */
+	public BatchTuner getBatchTuner() {
+		return batchTuner;
+	}
+
+	boolean isUiThread() {
+		return Thread.currentThread() == uiThread;
+	}
+
+	BridgeQueue getBridgeQueue() {
+		return bridgeQueue;
+	}
+
+	AsyncBridge getAsyncBridge() {
+		return asyncBridge;
+	}
+
+	BinaryChannel getBinaryChannel() {
+		return binaryChannel;
+	}
+
+	TypeCache getTypeCache() {
+		return typeCache;
+	}
+
+	/**
+	 * Opens a batch, or nests it into the open one.
+	 *
+	 * @see AnyXPCOM#beginBatch(Browser)
+	 */
+	BridgeBatch beginBatch() {
+		if (batch == null) {
+			batch = new BridgeBatch(this);
+		} else {
+			batch.begin();
+		}
+		return batch;
+	}
+
+	/**
+	 * Sends the calls recorded by the {@code batch} and closes it.
+	 */
+	void endBatch(BridgeBatch batch) {
+		try {
+			if (batch.isPending() && !browser.isDisposed()) {
+				evaluate("");
+			}
+		} catch (RuntimeException e) {
+			// recorded by the batch
+		} finally {
+			this.batch = null;
+		}
+		batch.checkFailure();
+	}
+
+	/**
+	 * Returns the open batch, or {@code null}.
+	 */
+	BridgeBatch getBatch() {
+		return batch;
+	}
+
+	/**
+	 * Records the call to the open batch.
+	 *
+	 * @see BridgeBatch#record(CallSite, String)
+	 */
+	Object record(CallSite callSite, String expression) {
+		readCache.clear();
+		return batch.record(callSite, expression);
+	}
+
+	/**
+	 * Makes the {@code proxy} counted as a user of its id.
+	 */
+	void track(NsiProxy proxy) {
+		if (!compactHandles) {
+			handleTracker.track(proxy);
+		}
+	}
+
+	/**
+	 * Makes the {@code list} counted as a user of the {@code nsiIds}
+	 * until it is garbage collected.
+	 */
+	void track(NsiList<?> list, int[] nsiIds) {
+		if (!compactHandles) {
+			handleTracker.track(list, nsiIds);
+		}
+	}
+
+	/**
+	 * Counts a list tracked with the {@code nsiIds} as a user of
+	 * {@code nsiIds[from..to)}, which are registered after the list.
+	 */
+	void pin(int[] nsiIds, int from, int to) {
+		if (!compactHandles) {
+			handleTracker.pin(nsiIds, from, to);
+		}
+	}
+
+	public int getMaxHandles() {
+		return handleTracker.getMaxHandles();
+	}
+
+	/**
+	 * Bounds the number of objects registered in {@code nsiArray}
+	 * ({@code 0}, the default, means no limit). When the limit is
+	 * exceeded, the least recently used objects are evicted from the
+	 * table. Their proxies remember how they were obtained (by
+	 * a getter or {@code item(index)} of another proxy, or by
+	 * {@link AnyXPCOM#queryInterface(String, Class, Browser)}) and are
+	 * resolved again when used, i.e. they may refer to another object
+	 * if the document has changed. Objects returned by other methods
+	 * cannot be resolved again and are never evicted. An evicted object
+	 * gets its previous id when it is resolved or fetched again, so its
+	 * proxies keep their hash codes.
+	 * <P>
+	 * The limit should be set before the proxies are created,
+	 * since paths are remembered only when it is set.
+	 */
+	public void setMaxHandles(int maxHandles) {
+		handleTracker.setMaxHandles(maxHandles);
+	}
+
+	public boolean isCompactHandles() {
+		return compactHandles;
+	}
+
+	/**
+	 * Enables or disables compact handles, for mirroring of large
+	 * documents. A compact proxy is still a proxy object with its handler
+	 * (a packed handle and an epoch), but it is not tracked: no weak
+	 * reference and no table entry are kept for it. So the ids of compact
+	 * proxies are not {@link #setMaxHandles(int) evicted} or released,
+	 * and the browser keeps their objects until the document is unloaded.
+	 * Fetching the same object twice gives two proxy instances.
+	 * <P>
+	 * The mode should be set before the proxies are created.
+	 */
+	public void setCompactHandles(boolean compactHandles) {
+		this.compactHandles = compactHandles;
+	}
+
+	/**
+	 * Returns the number of objects registered in {@code nsiArray}
+	 * and used by live proxies.
+	 */
+	public int getHandleCount() {
+		return handleTracker.size();
+	}
+
+	boolean isBounded() {
+		return !compactHandles && handleTracker.getMaxHandles() > 0;
+	}
+
+	/**
+	 * Returns the handler of the live proxy of the {@code type}
+	 * for the {@code nsiId}, if any.
+	 */
+	NsiProxy findProxy(int nsiId, Class<?> type) {
+		return compactHandles ? null : handleTracker.find(nsiId, type);
+	}
+
+	/**
+	 * Marks the {@code nsiId} as just used.
+	 */
+	void touch(int nsiId) {
+		handleTracker.touch(nsiId);
+	}
+
+	int getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Returns the epoch to be given to a runtime created
+	 * in a new document.
+	 */
+	int nextEpoch() {
+		return lastEpoch + 1;
+	}
+
+	/**
+	 * Called by {@link AnyXPCOM#initBrowser} with the epoch of the runtime
+	 * in the browser. It is an old epoch if the runtime has survived
+	 * a location change (e.g. navigation to an anchor).
+	 */
+	void runtimeInitialized(int runtimeEpoch) {
+		if (runtimeEpoch > lastEpoch) {
+			documentChanged();
+		}
+		epoch = runtimeEpoch;
+	}
+
+	/**
+	 * Called when the top location of the browser has changed. The location
+	 * also changes by navigation to an anchor or by the history API, and
+	 * then the document and its runtime survive, so the proxies stay valid.
+	 */
+	void locationChanged() {
+		Object runtimeEpoch;
+		try {
+			runtimeEpoch = browser.evaluate(
+					"return window.nsiArray ? window.nsiEpoch : -1"); //$NON-NLS-1$
+		} catch (SWTException e) {
+			runtimeEpoch = null;
+		}
+		if (!(runtimeEpoch instanceof Number) || ((Number) runtimeEpoch).intValue() != epoch) {
+			documentChanged();
+		}
+	}
+
+	/**
+	 * Invalidates all proxies of the current document, and drops
+	 * calls and releases pending for it.
+	 */
+	void documentChanged() {
+		epoch = ++lastEpoch;
+		readCache.clear();
+		writeQueue.drain();
+		handleTracker.clear();
+		if (batch != null && batch.isPending()) {
+			batch.failed(new XPCOMException(XPCOM.NS_ERROR_NOT_AVAILABLE,
+					"The document has been unloaded"));
+		}
+	}
+
+	/**
+	 * Evaluates a void {@code statement}, or defers it if
+	 * deferred writes are enabled.
+	 */
+	void write(String statement) {
+		readCache.clear();
+		if (!deferredWrites) {
+			run(statement, callBudget);
+			return;
+		}
+
+		writeQueue.add(statement);
+		if (writeQueue.size() >= maxDeferredCalls
+				|| writeQueue.length() >= maxDeferredLength) {
+			flush();
+		} else if (!flushScheduled) {
+			scheduleFlush(maxDeferredDelay);
+		}
+	}
+
+	/**
+	 * Evaluates the {@code script} preceded by all deferred calls.
+	 */
+	Object evaluate(String script) {
+		return evaluate(script, false);
+	}
+
+	/**
+	 * Evaluates the {@code script} preceded by all deferred calls.
+	 *
+	 * @param readOnly {@code true} if the script only reads the document,
+	 * so it does not invalidate the results of reads
+	 */
+	Object evaluate(String script, boolean readOnly) {
+		if (!readOnly) {
+			readCache.clear();
+		}
+		return run(script, callBudget);
+	}
+
+	/**
+	 * Evaluates the {@code script} combining several requests,
+	 * preceded by all deferred calls.
+	 *
+	 * @see #evaluate(String, boolean)
+	 */
+	Object evaluateBatch(String script, boolean readOnly) {
+		if (!readOnly) {
+			readCache.clear();
+		}
+		return run(script, batchBudget);
+	}
+
+	/**
+	 * Evaluates the {@code script} preceded by all deferred calls and
+	 * the calls recorded by the open batch, and reports it to the watchdog
+	 * if it overruns the {@code budget}. The releases of unused ids go
+	 * after the calls, because the calls may use the ids.
+	 */
+	private Object run(String script, int budget) {
+		if (!writeQueue.isEmpty()) {
+			batchTuner.sampleWrites(writeQueue.length(), writeQueue.size());
+		}
+		StringBuilder full = new StringBuilder(writeQueue.drain());
+		boolean batched = batch != null && batch.isPending();
+		if (batched) {
+			readCache.clear();
+			StringBuilder releases = new StringBuilder();
+			handleTracker.appendReleases(releases);
+			batch.appendScript(full, releases, script);
+		} else {
+			if (handleTracker.appendReleases(full)) {
+				// cached handles may refer to the released ids
+				readCache.clear();
+			}
+			full.append(script);
+		}
+		long start = System.nanoTime();
+		try {
+			Object result;
+			if (jsonResults) {
+				result = WireFormat.decode(browser.evaluate(WireFormat.wrap(full)));
+			} else {
+				result = browser.evaluate(full.toString());
+			}
+			return batched ? batch.sent(result) : result;
+		} catch (RuntimeException e) {
+			if (batched) {
+				batch.failed(e);
+			}
+			throw e;
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			batchTuner.sampleScript(full.length(), elapsed);
+			watchdog.check(script.length() == 0 ? full : script,
+					elapsed, budget);
+		}
+	}
+
+	/**
+	 * Returns the result of {@code convertNsi(expression)}, where
+	 * the {@code expression} is a read. It is evaluated once per tick
+	 * if read deduplication is enabled.
+	 */
+	Object evaluateRead(String expression) {
+		if (!readDedup) {
+			return evaluate("return convertNsi(" + expression + ")");
+		}
+		Object value = getCachedRead(expression);
+		if (value == ReadCache.MISS) {
+			value = evaluate("return convertNsi(" + expression + ")", true);
+			cacheRead(expression, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the result of the read {@code expression} evaluated
+	 * in the current tick, or {@link ReadCache#MISS}.
+	 */
+	Object getCachedRead(String expression) {
+		if (handleTracker.hasEvictions()) {
+			// the results may refer to the ids being released
+			readCache.clear();
+		}
+		return readCache.get(expression);
+	}
+
+	void cacheRead(String expression, Object value) {
+		if (readCache.isEmpty()) {
+			browser.getDisplay().asyncExec(readCacheCleaner);
+		}
+		readCache.put(expression, value);
+	}
+
+	private void scheduleFlush(int delay) {
+		flushScheduled = true;
+		browser.getDisplay().timerExec(delay, flushTimer);
+	}
+}
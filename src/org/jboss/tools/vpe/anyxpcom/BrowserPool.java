@@ -0,0 +1,370 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.browser.ProgressAdapter;
+import org.eclipse.swt.browser.ProgressEvent;
+import org.eclipse.swt.widgets.Composite;
+import org.mozilla.xpcom.XPCOMException;
+
+/**
+ * Pool of warmed workers (usually {@link Browser}s) for batch processing
+ * of documents. The workers are created once, and every document is
+ * loaded into an idle worker, which is {@link Lease leased} to the caller
+ * when the document is ready. So with several workers, the next documents
+ * are loading while the current one is processed:
+ * <pre>
+ * BrowserPool&lt;Browser&gt; pool = new BrowserPool&lt;Browser&gt;(
+ *         BrowserPool.browsers(shell, SWT.NONE), 4);
+ * pool.process(files.iterator(), new BrowserPool.Processor&lt;Browser&gt;() {
+ *     public void process(BrowserPool.Lease&lt;Browser&gt; lease) {
+ *         nsIDOMDocument document = AnyXPCOM.queryInterface(
+ *                 "document", nsIDOMDocument.class, lease.getWorker());
+ *         ...
+ *     }
+ * });</pre>
+ * The kind of the workers is defined by the {@link WorkerFactory}: real
+ * browsers by {@link #browsers(Composite, int)}, or an in-process
+ * stand-in completing loads on demand, e.g. to test the pool without
+ * a display.
+ * <P>
+ * The pool must be used from the UI thread.
+ */
+public final class BrowserPool<W> {
+	/**
+	 * Creates, loads and disposes workers of a pool.
+	 */
+	public interface WorkerFactory<W> {
+		W create();
+
+		/**
+		 * Loads the {@code document} (a URL or a markup) into the
+		 * {@code worker}, and runs {@code loaded} when it is ready to be
+		 * queried, e.g. when the runtime of {@link AnyXPCOM} is injected.
+		 *
+		 * @throws RuntimeException if the loading cannot be started,
+		 * then {@code loaded} is never run
+		 */
+		void load(W worker, String document, Runnable loaded);
+
+		void dispose(W worker);
+	}
+
+	/**
+	 * Receives a worker with a loaded document.
+	 */
+	public interface Callback<W> {
+		void loaded(Lease<W> lease);
+
+		/**
+		 * Called instead of {@link #loaded(Lease)} if the
+		 * {@code document} cannot be loaded. The worker stays in the pool.
+		 */
+		void failed(String document, RuntimeException failure);
+	}
+
+	/**
+	 * Processes the documents of {@link BrowserPool#process(Iterator, Processor)}.
+	 */
+	public interface Processor<W> {
+		/**
+		 * Processes the document loaded into the worker of the
+		 * {@code lease}. The lease is released when the method returns.
+		 */
+		void process(Lease<W> lease) throws Exception;
+	}
+
+	/**
+	 * Worker leased with a loaded document. The worker returns
+	 * to the pool when the lease is {@link #release() released}.
+	 */
+	public static final class Lease<W> {
+		private final BrowserPool<W> pool;
+		private final W worker;
+		private final String document;
+		private boolean released;
+
+		Lease(BrowserPool<W> pool, W worker, String document) {
+			this.pool = pool;
+			this.worker = worker;
+			this.document = document;
+		}
+
+		public W getWorker() {
+			return worker;
+		}
+
+		public String getDocument() {
+			return document;
+		}
+
+		public void release() {
+			if (!released) {
+				released = true;
+				pool.release(worker);
+			}
+		}
+	}
+
+	private final WorkerFactory<W> factory;
+	private final List<W> workers;
+	private final ArrayDeque<W> idle;
+	/* documents waiting for idle workers */
+	private final ArrayDeque<Request<W>> waiting = new ArrayDeque<Request<W>>();
+	/* requests whose documents are loaded, delivered one by one
+	 * to avoid deep recursion with synchronous factories */
+	private final ArrayDeque<Request<W>> loaded = new ArrayDeque<Request<W>>();
+	/* pipelines of process() which are not finished yet */
+	private final List<Pipeline> pipelines = new ArrayList<Pipeline>();
+	private boolean delivering;
+	private boolean disposed;
+
+	/**
+	 * Creates the pool of {@code size} workers, and loads the
+	 * {@code about:blank} page into all of them.
+	 */
+	public BrowserPool(WorkerFactory<W> factory, int size) {
+		this.factory = factory;
+		this.workers = new ArrayList<W>(size);
+		this.idle = new ArrayDeque<W>(size);
+		for (int i = 0; i < size; i++) {
+			final W worker = factory.create();
+			workers.add(worker);
+			factory.load(worker, "about:blank", new Runnable() { //$NON-NLS-1$
+				public void run() {
+					release(worker);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the factory of warmed SWT browsers, which injects the runtime
+	 * of {@link AnyXPCOM} into every loaded document. A document starting
+	 * with {@code '<'} is loaded as a markup, otherwise as a URL.
+	 */
+	public static WorkerFactory<Browser> browsers(final Composite parent, final int style) {
+		return new WorkerFactory<Browser>() {
+			public Browser create() {
+				return new Browser(parent, style);
+			}
+
+			public void load(final Browser browser, String document, final Runnable loaded) {
+				ProgressAdapter listener = new ProgressAdapter() {
+					@Override
+					public void completed(ProgressEvent event) {
+						browser.removeProgressListener(this);
+						AnyXPCOM.initBrowser(browser);
+						loaded.run();
+					}
+				};
+				browser.addProgressListener(listener);
+				boolean started = false;
+				try {
+					if (document.startsWith("<")) { //$NON-NLS-1$
+						started = browser.setText(document);
+					} else {
+						started = browser.setUrl(document);
+					}
+				} finally {
+					if (!started && !browser.isDisposed()) {
+						browser.removeProgressListener(listener);
+					}
+				}
+				if (!started) {
+					throw new XPCOMException(XPCOM.NS_ERROR_NOT_AVAILABLE,
+							"Could not load " + document); //$NON-NLS-1$
+				}
+			}
+
+			public void dispose(Browser browser) {
+				browser.dispose();
+			}
+		};
+	}
+
+	public int getSize() {
+		return workers.size();
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Loads the {@code document} into the first idle worker, and passes
+	 * the lease of the worker to the {@code callback} when the document
+	 * is ready. The document waits for a worker if none is idle.
+	 */
+	public void lease(String document, Callback<W> callback) {
+		checkDisposed();
+		waiting.add(new Request<W>(document, callback));
+		startLoads();
+	}
+
+	/**
+	 * Processes all {@code documents} by the {@code processor} in
+	 * a pipeline: as many documents are loaded at once as there are
+	 * workers, and a worker loads the next document as soon as the
+	 * processing of its previous one is finished.
+	 *
+	 * @return the future giving the number of processed documents, or the
+	 * first failure of the processor (then the remaining documents
+	 * are skipped), or {@link XPCOM#NS_ERROR_ABORT} if the pool
+	 * is disposed before all documents are processed
+	 */
+	public BridgeFuture<Integer> process(Iterator<String> documents, Processor<W> processor) {
+		checkDisposed();
+		Pipeline pipeline = new Pipeline(documents, processor);
+		pipelines.add(pipeline);
+		pipeline.feed();
+		return pipeline.result;
+	}
+
+	/**
+	 * Disposes all workers. Documents waiting for workers are dropped,
+	 * and unfinished {@link #process(Iterator, Processor) processing}
+	 * fails.
+	 */
+	public void dispose() {
+		if (disposed) {
+			return;
+		}
+		disposed = true;
+		waiting.clear();
+		for (Pipeline pipeline : new ArrayList<Pipeline>(pipelines)) {
+			pipeline.result.fail(new XPCOMException(XPCOM.NS_ERROR_ABORT,
+					"The pool is disposed")); //$NON-NLS-1$
+		}
+		pipelines.clear();
+		for (W worker : workers) {
+			factory.dispose(worker);
+		}
+		workers.clear();
+		idle.clear();
+	}
+
+	private void checkDisposed() {
+		if (disposed) {
+			throw new IllegalStateException("The pool is disposed"); //$NON-NLS-1$
+		}
+	}
+
+	private void release(W worker) {
+		if (!disposed) {
+			idle.add(worker);
+			startLoads();
+		}
+	}
+
+	private void startLoads() {
+		while (!idle.isEmpty() && !waiting.isEmpty()) {
+			final W worker = idle.poll();
+			final Request<W> request = waiting.poll();
+			try {
+				factory.load(worker, request.document, new Runnable() {
+					public void run() {
+						request.lease = new Lease<W>(BrowserPool.this, worker, request.document);
+						loaded.add(request);
+						deliver();
+					}
+				});
+			} catch (RuntimeException e) {
+				request.failure = e;
+				idle.add(worker);
+				loaded.add(request);
+			}
+		}
+		deliver();
+	}
+
+	private void deliver() {
+		if (delivering) {
+			return;
+		}
+		delivering = true;
+		try {
+			Request<W> request;
+			while ((request = loaded.poll()) != null) {
+				if (disposed) {
+					continue;
+				}
+				if (request.failure != null) {
+					request.callback.failed(request.document, request.failure);
+				} else {
+					request.callback.loaded(request.lease);
+				}
+			}
+		} finally {
+			delivering = false;
+		}
+	}
+
+	private static final class Request<W> {
+		final String document;
+		final Callback<W> callback;
+		Lease<W> lease;
+		RuntimeException failure;
+
+		Request(String document, Callback<W> callback) {
+			this.document = document;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * State of {@link BrowserPool#process(Iterator, Processor)}.
+	 */
+	private final class Pipeline implements Callback<W> {
+		final BridgeFuture<Integer> result = new BridgeFuture<Integer>(null);
+		private final Iterator<String> documents;
+		private final Processor<W> processor;
+		private int processed;
+		/** number of documents leased, but not processed yet */
+		private int active;
+
+		Pipeline(Iterator<String> documents, Processor<W> processor) {
+			this.documents = documents;
+			this.processor = processor;
+		}
+
+		public void loaded(Lease<W> lease) {
+			active--;
+			try {
+				if (!result.isDone()) {
+					processor.process(lease);
+					processed++;
+				}
+			} catch (Exception e) {
+				result.fail(e);
+			} finally {
+				lease.release();
+			}
+			feed();
+		}
+
+		public void failed(String document, RuntimeException failure) {
+			active--;
+			result.fail(failure);
+			feed();
+		}
+
+		/**
+		 * Keeps a document for every worker in the pipeline.
+		 */
+		void feed() {
+			while (!result.isDone() && active < workers.size() && documents.hasNext()) {
+				active++;
+				lease(documents.next(), this);
+			}
+			if (active == 0) {
+				result.complete(processed);
+				pipelines.remove(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.lang.reflect.Method;
+
+/**
+ * Precompiled description of a method called through {@link NsiProxy}.
+ * Call sites are built once for all methods of an interface and cached
+ * per browser by {@link TypeCache}, so the name of a method is never
+ * analyzed on a call.
+ */
+final class CallSite {
+	enum Kind {
+		NSI_ID, BROWSER, EQUALS, HASH_CODE, GETTER, METHOD
+	}
+
+	final Kind kind;
+	/** JS member fragment, e.g. {@code ".nodeName"} or {@code ".appendChild("} */
+	final String member;
+	final Class<?> returnType;
+	final boolean isVoid;
+	/** {@code true} for getters of interfaces, which may be chained lazily */
+	final boolean isChainable;
+	/** {@code true} if the call may be repeated to get its result again,
+	 * i.e. for getters and {@code item(index)} methods of collections */
+	final boolean isRepeatable;
+	/** {@code true} if the call only reads the document: getters and
+	 * methods like {@code item(index)}, {@code getAttribute(name)} or
+	 * {@code hasChildNodes()} */
+	final boolean isRead;
+	final ResultConverter converter;
+
+	private CallSite(Kind kind, String member, Class<?> returnType, boolean isRepeatable) {
+		this(kind, member, returnType, isRepeatable, kind == Kind.GETTER);
+	}
+
+	private CallSite(Kind kind, String member, Class<?> returnType,
+			boolean isRepeatable, boolean isRead) {
+		this.kind = kind;
+		this.member = member;
+		this.returnType = returnType;
+		this.isVoid = returnType == void.class;
+		this.isChainable = kind == Kind.GETTER && returnType.isInterface();
+		this.isRepeatable = isRepeatable;
+		this.isRead = isRead && !isVoid;
+		this.converter = ResultConverter.forType(returnType);
+	}
+
+	/**
+	 * Creates the call site of a getter (used by generated stubs).
+	 */
+	static CallSite getter(String member, Class<?> returnType) {
+		return new CallSite(Kind.GETTER, member, returnType, true);
+	}
+
+	/**
+	 * Creates the call site of a method (used by generated stubs).
+	 */
+	static CallSite method(String member, Class<?> returnType, boolean isRepeatable) {
+		return new CallSite(Kind.METHOD, member, returnType, isRepeatable,
+				isReadMethod(member.substring(1, member.length() - 1)));
+	}
+
+	private static boolean isReadMethod(String name) {
+		return "item".equals(name) || name.startsWith("get")
+				|| name.startsWith("has") || name.startsWith("is");
+	}
+
+	/**
+	 * Returns the JS property read by the getter {@code name}. XPCOM
+	 * capitalizes the first letter of the attribute, so it is lowered
+	 * back unless the attribute starts with an acronym: {@code getNodeName}
+	 * reads {@code nodeName}, and {@code getURL} reads {@code URL}.
+	 */
+	static String getPropertyName(String name) {
+		if (name.length() > 4 && Character.isUpperCase(name.charAt(4))) {
+			return name.substring(3);
+		}
+		return Character.toLowerCase(name.charAt(3)) + name.substring(4);
+	}
+
+	static CallSite create(Method method) {
+		String name = method.getName();
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		Class<?> returnType = method.getReturnType();
+		Kind kind;
+		if (method.getDeclaringClass() == NumeratedNsi.class) {
+			kind = "getNsiId".equals(name) ? Kind.NSI_ID : Kind.BROWSER;
+		} else if ("equals".equals(name) && parameterTypes.length == 1
+				&& parameterTypes[0] == Object.class) {
+			kind = Kind.EQUALS;
+		} else if ("hashCode".equals(name) && parameterTypes.length == 0) {
+			kind = Kind.HASH_CODE;
+		} else if (name.startsWith("get") && name.length() > 3 && parameterTypes.length == 0) {
+			kind = Kind.GETTER;
+		} else {
+			kind = Kind.METHOD;
+		}
+
+		String member;
+		if (kind == Kind.GETTER) {
+			member = "." + getPropertyName(name);
+		} else if (kind == Kind.METHOD) {
+			member = "." + name + "(";
+		} else {
+			member = null;
+		}
+		boolean isRepeatable = kind == Kind.GETTER
+				|| (kind == Kind.METHOD && "item".equals(name) && parameterTypes.length == 1
+						&& (parameterTypes[0] == long.class || parameterTypes[0] == int.class));
+		boolean isRead = kind == Kind.GETTER
+				|| (kind == Kind.METHOD && isReadMethod(name));
+		return new CallSite(kind, member, returnType, isRepeatable, isRead);
+	}
+}
@@ -0,0 +1,295 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps proxies referring to every id of {@code nsiArray}. When all
+ * proxies of an id are garbage collected, the id is released, so
+ * the browser may collect its object too.
+ * <P>
+ * The number of ids may be bounded. Then the least recently used id
+ * is evicted from {@code nsiArray} when the bound is exceeded, and its
+ * proxies are resolved again by their {@link NsiProxy#isResolvable() paths}
+ * when they are used next time. Ids of proxies without a path are never
+ * evicted. The browser drops the object of an evicted id, but keeps its
+ * slot until all proxies of the id are collected, so the object gets
+ * the same id when it is registered again, and the proxies of the object
+ * keep their hash codes.
+ * <P>
+ * Ids of {@link NsiList}s are pinned as long as the lists are reachable,
+ * so that proxies of their elements may be created at any time. Pinned
+ * ids are never evicted, and they are not counted by the bound, so
+ * a big list does not make the proxies evicted.
+ */
+final class HandleTracker {
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	/* Proxies by ids in the order of access. The references have
+	 * to be reachable to be enqueued. */
+	private final LinkedHashMap<Integer, List<HandleReference>> handles
+			= new LinkedHashMap<Integer, List<HandleReference>>(16, 0.75f, true);
+	/* numbers of lists by the ids they pin */
+	private final Map<Integer, Integer> pinned = new HashMap<Integer, Integer>();
+	private final Set<HandleReference> lists = new HashSet<HandleReference>();
+	/* Proxies by evicted ids, whose slots are kept in nsiArray */
+	private final Map<Integer, List<HandleReference>> evicted
+			= new HashMap<Integer, List<HandleReference>>();
+	/* ids to be evicted by the next script */
+	private final Set<Integer> evictedIds = new LinkedHashSet<Integer>();
+	/* ids to be released by the next script */
+	private final Set<Integer> releasedIds = new LinkedHashSet<Integer>();
+	private int maxHandles;
+
+	int getMaxHandles() {
+		return maxHandles;
+	}
+
+	/**
+	 * Sets the maximal number of ids, {@code 0} means no limit.
+	 */
+	void setMaxHandles(int maxHandles) {
+		this.maxHandles = maxHandles;
+		evictExcess();
+	}
+
+	/**
+	 * Returns the number of ids used by proxies or pinned by lists.
+	 */
+	int size() {
+		int size = handles.size();
+		for (Integer nsiId : pinned.keySet()) {
+			if (!handles.containsKey(nsiId)) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Makes the {@code proxy} counted as a user of its id. If the id has
+	 * been evicted or released, but the script doing it has not been
+	 * sent yet (e.g. the id has been evicted by another result of the
+	 * same script), it is kept.
+	 */
+	void track(NsiProxy proxy) {
+		Integer nsiId = proxy.nsiId();
+		evictedIds.remove(nsiId);
+		releasedIds.remove(nsiId);
+		List<HandleReference> references = handles.get(nsiId);
+		if (references == null) {
+			// the proxies of an evicted id are in use again
+			references = evicted.remove(nsiId);
+			if (references == null) {
+				references = new ArrayList<HandleReference>(1);
+			}
+			handles.put(nsiId, references);
+		}
+		if (!contains(references, proxy)) { // unless pinned again
+			references.add(new HandleReference(proxy, nsiId, null, queue));
+		}
+		evictExcess();
+	}
+
+	private static boolean contains(List<HandleReference> references, NsiProxy proxy) {
+		for (HandleReference reference : references) {
+			if (reference.get() == proxy) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Pins the {@code nsiIds} while the {@code list} is reachable,
+	 * negative ids are ignored.
+	 */
+	void track(NsiList<?> list, int[] nsiIds) {
+		lists.add(new HandleReference(list, -1, nsiIds, queue));
+		pin(nsiIds, 0, nsiIds.length);
+	}
+
+	/**
+	 * Pins the ids {@code nsiIds[from..to)} of a list tracked by
+	 * {@link #track(NsiList, int[])}, which are registered after the list,
+	 * negative ids are ignored. They are unpinned with the list.
+	 */
+	void pin(int[] nsiIds, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (nsiIds[i] >= 0) {
+				evictedIds.remove(nsiIds[i]);
+				releasedIds.remove(nsiIds[i]);
+				Integer count = pinned.get(nsiIds[i]);
+				pinned.put(nsiIds[i], count == null ? 1 : count + 1);
+			}
+		}
+	}
+
+	/**
+	 * Returns a live handler of a proxy implementing the {@code type}
+	 * for the {@code nsiId}, or {@code null} if there is no such proxy.
+	 */
+	NsiProxy find(int nsiId, Class<?> type) {
+		List<HandleReference> references = handles.get(nsiId);
+		if (references != null) {
+			for (HandleReference reference : references) {
+				NsiProxy proxy = (NsiProxy) reference.get();
+				if (proxy != null && type.isInstance(proxy.proxy)) {
+					return proxy;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Marks the {@code nsiId} as the most recently used.
+	 */
+	void touch(int nsiId) {
+		if (maxHandles > 0) {
+			handles.get(nsiId);
+		}
+	}
+
+	/**
+	 * Returns {@code true} if some ids are evicted or released,
+	 * but the browser is not told yet.
+	 */
+	boolean hasEvictions() {
+		return !evictedIds.isEmpty() || !releasedIds.isEmpty();
+	}
+
+	/**
+	 * Appends calls evicting ids and releasing ids of collected proxies
+	 * to the {@code script}.
+	 *
+	 * @return {@code true} if some ids are evicted or released
+	 */
+	boolean appendReleases(StringBuilder script) {
+		HandleReference reference;
+		while ((reference = (HandleReference) queue.poll()) != null) {
+			if (reference.nsiIds == null) {
+				Map<Integer, List<HandleReference>> users
+						= handles.containsKey(reference.nsiId) ? handles : evicted;
+				List<HandleReference> references = users.get(reference.nsiId);
+				if (references != null && references.remove(reference)
+						&& references.isEmpty()) {
+					users.remove(reference.nsiId);
+					if (!pinned.containsKey(reference.nsiId)) {
+						evictedIds.remove(reference.nsiId);
+						releasedIds.add(reference.nsiId);
+					}
+				}
+			} else if (lists.remove(reference)) {
+				unpin(reference.nsiIds);
+			}
+		}
+		boolean appended = appendCall(script, "evictNsi", evictedIds); //$NON-NLS-1$
+		return appendCall(script, "releaseNsi", releasedIds) || appended; //$NON-NLS-1$
+	}
+
+	private static boolean appendCall(StringBuilder script, String function, Set<Integer> nsiIds) {
+		if (nsiIds.isEmpty()) {
+			return false;
+		}
+		script.append(function).append("([");
+		boolean first = true;
+		for (Integer nsiId : nsiIds) {
+			if (!first) {
+				script.append(',');
+			}
+			script.append(nsiId);
+			first = false;
+		}
+		script.append("]);");
+		nsiIds.clear();
+		return true;
+	}
+
+	private void unpin(int[] nsiIds) {
+		for (int i = 0; i < nsiIds.length; i++) {
+			if (nsiIds[i] < 0) {
+				continue;
+			}
+			Integer count = pinned.get(nsiIds[i]);
+			if (count > 1) {
+				pinned.put(nsiIds[i], count - 1);
+			} else {
+				pinned.remove(nsiIds[i]);
+				if (!handles.containsKey(nsiIds[i]) && !evicted.containsKey(nsiIds[i])) {
+					releasedIds.add(nsiIds[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets all ids, e.g. when {@code nsiArray} is created anew.
+	 */
+	void clear() {
+		handles.clear();
+		evicted.clear();
+		pinned.clear();
+		lists.clear();
+		evictedIds.clear();
+		releasedIds.clear();
+		while (queue.poll() != null) {
+			// drop
+		}
+	}
+
+	private void evictExcess() {
+		if (maxHandles <= 0) {
+			return;
+		}
+		Iterator<Map.Entry<Integer, List<HandleReference>>> iterator
+				= handles.entrySet().iterator();
+		while (handles.size() > maxHandles && iterator.hasNext()) {
+			Map.Entry<Integer, List<HandleReference>> entry = iterator.next();
+			if (!iterator.hasNext()) {
+				break; // the most recent id is just being used
+			}
+			if (!pinned.containsKey(entry.getKey()) && isEvictable(entry.getValue())) {
+				for (HandleReference reference : entry.getValue()) {
+					NsiProxy proxy = (NsiProxy) reference.get();
+					if (proxy != null) {
+						proxy.evict();
+					}
+				}
+				iterator.remove();
+				evicted.put(entry.getKey(), entry.getValue());
+				evictedIds.add(entry.getKey());
+			}
+		}
+	}
+
+	private static boolean isEvictable(List<HandleReference> references) {
+		for (HandleReference reference : references) {
+			NsiProxy proxy = (NsiProxy) reference.get();
+			if (proxy != null && !proxy.isResolvable()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* A reference to a proxy using the nsiId, or to a list pinning the nsiIds */
+	private static final class HandleReference extends WeakReference<Object> {
+		final int nsiId;
+		final int[] nsiIds;
+
+		HandleReference(Object user, int nsiId, int[] nsiIds, ReferenceQueue<Object> queue) {
+			super(user, queue);
+			this.nsiId = nsiId;
+			this.nsiIds = nsiIds;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+import org.eclipse.swt.browser.Browser;
+import org.mozilla.xpcom.XPCOMException;
+
+/**
+ * An unmodifiable list of objects of a browser, returned by
+ * {@link AnyXPCOM#queryList(String, Class, Browser)}. The browser keeps
+ * a copy of the collection under one id, and its elements are
+ * registered in {@code nsiArray} when they are accessed first, in
+ * chunks of {@value #CHUNK} elements. The ids of the registered elements
+ * are kept in an {@code int[]}, and the proxy of an element is created
+ * when the element is accessed first. So a big collection of which only
+ * a few elements are used costs an {@code int} per element, instead of
+ * a proxy, a tracked handler and an entry of {@code nsiArray}.
+ * <P>
+ * The ids are used by the list as long as it is reachable (see
+ * {@link BrowserContext#setMaxHandles(int)}). The elements are not
+ * available after the document is unloaded. Like the {@link Browser}
+ * itself, the list must be accessed from the UI thread only.
+ */
+public final class NsiList<T> extends AbstractList<T> implements RandomAccess {
+	/** number of elements registered at once */
+	static final int CHUNK = 64;
+	/* an id of an element which is not registered yet */
+	private static final int UNREGISTERED = -2;
+
+	private final BrowserContext context;
+	private final Class<T> type;
+	/* id of the copy of the collection */
+	private final int arrayId;
+	/* ids of the elements, -1 if an element is not an object */
+	private final int[] ids;
+	private final int epoch;
+	/* created on first access */
+	private Object[] elements;
+
+	private NsiList(BrowserContext context, Class<T> type, int arrayId, int size) {
+		this.context = context;
+		this.type = type;
+		this.arrayId = arrayId;
+		this.ids = new int[size];
+		Arrays.fill(ids, UNREGISTERED);
+		this.epoch = context.getEpoch();
+	}
+
+	/**
+	 * Evaluates the {@code jsExpression} giving an array or an array-like
+	 * object, and registers a copy of it, so a live collection like
+	 * {@code NodeList} does not change under the list. Elements which
+	 * are not objects are {@code null}.
+	 *
+	 * @return the list, or {@code null} if the value is {@code null}
+	 * or {@code undefined}
+	 */
+	static <T> NsiList<T> query(BrowserContext context, String jsExpression, Class<T> type) {
+		Object result = context.evaluate(
+				"var v=" + jsExpression + ";" + //$NON-NLS-1$ //$NON-NLS-2$
+				"if(v===null||v===undefined)return null;" + //$NON-NLS-1$
+				"var a=[];" + //$NON-NLS-1$
+				"for(var i=0;i<v.length;i++){a[i]=v[i]}" + //$NON-NLS-1$
+				"return idNsi(a)+','+a.length", true); //$NON-NLS-1$
+		if (result == null) {
+			return null;
+		}
+		int[] idAndSize = parseIds((String) result);
+		NsiList<T> list = new NsiList<T>(context, type, idAndSize[0], idAndSize[1]);
+		context.track(list, new int[] {list.arrayId});
+		context.track(list, list.ids);
+		return list;
+	}
+
+	/**
+	 * Registers the chunk of elements containing the {@code index}.
+	 */
+	private void register(int index) {
+		int from = index / CHUNK * CHUNK;
+		int to = Math.min(from + CHUNK, ids.length);
+		// the ids are sent as one string instead of an array of handles
+		Object result = context.evaluate(
+				"var a=nsiArray[" + arrayId + "],ids=[];" + //$NON-NLS-1$ //$NON-NLS-2$
+				"for(var i=" + from + ";i<" + to + ";i++){" + //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					"var p=a[i];" + //$NON-NLS-1$
+					"ids.push(p!==null&&(typeof p==='object'||typeof p==='function')?idNsi(p):-1)" + //$NON-NLS-1$
+				"}" + //$NON-NLS-1$
+				"return ids.join(',')", true); //$NON-NLS-1$
+		int[] registered = parseIds((String) result);
+		System.arraycopy(registered, 0, ids, from, to - from);
+		context.pin(ids, from, to);
+	}
+
+	private static int[] parseIds(String joined) {
+		if (joined.length() == 0) {
+			return new int[0];
+		}
+		int count = 1;
+		for (int i = 0; i < joined.length(); i++) {
+			if (joined.charAt(i) == ',') {
+				count++;
+			}
+		}
+		int[] ids = new int[count];
+		int index = 0;
+		int id = 0;
+		boolean negative = false;
+		for (int i = 0; i < joined.length(); i++) {
+			char c = joined.charAt(i);
+			if (c == ',') {
+				ids[index++] = negative ? -id : id;
+				id = 0;
+				negative = false;
+			} else if (c == '-') {
+				negative = true;
+			} else {
+				id = id * 10 + (c - '0');
+			}
+		}
+		ids[index] = negative ? -id : id;
+		return ids;
+	}
+
+	public Browser getBrowser() {
+		return context.getBrowser();
+	}
+
+	@Override
+	public int size() {
+		return ids.length;
+	}
+
+	@Override
+	public T get(int index) {
+		if (index < 0 || index >= ids.length) {
+			throw new IndexOutOfBoundsException("Index: " + index); //$NON-NLS-1$
+		} else if (context.getEpoch() != epoch) {
+			throw new XPCOMException(XPCOM.NS_ERROR_NOT_AVAILABLE,
+					"The document of the list has been unloaded");
+		}
+		if (ids[index] == UNREGISTERED) {
+			register(index);
+		}
+		if (ids[index] < 0) {
+			return null;
+		}
+		if (elements == null) {
+			elements = new Object[ids.length];
+		}
+		Object element = elements[index];
+		if (element == null) {
+			element = AnyXPCOM.createProxy(context.getBrowser(), ids[index], type);
+			elements[index] = element;
+		}
+		return type.cast(element);
+	}
+
+	/**
+	 * Returns {@code true} if the element at the {@code index} has been
+	 * registered in {@code nsiArray}.
+	 */
+	public boolean isRegistered(int index) {
+		return ids[index] != UNREGISTERED;
+	}
+
+	/**
+	 * Returns {@code true} if the proxy of the element at the {@code index}
+	 * has been created.
+	 */
+	public boolean isMaterialized(int index) {
+		return elements != null && elements[index] != null;
+	}
+}
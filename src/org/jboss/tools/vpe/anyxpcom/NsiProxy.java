@@ -1,124 +1,541 @@
 package org.jboss.tools.vpe.anyxpcom;
 
-import java.lang.reflect.Array;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 
 import org.eclipse.swt.browser.Browser;
+import org.mozilla.xpcom.XPCOMException;
 
 /**
  * @author Yahor Radtsevich (yradtsevich)
  */
 public class NsiProxy implements InvocationHandler {
-	Browser browser;
-	int nsiId;
+	private static final long NO_ID = 0xFFFFFFFFL;
+	/* flag of a handle whose id has been evicted, to be pinned again */
+	private static final long EVICTED = 1L << 63;
+	private static final long CONTEXT_BITS = ~(EVICTED | NO_ID);
+	/* id of a proxy whose id has been evicted */
+	private static final int EVICTED_ID = -2;
+	private static final String RETURN_CONVERT = "return convertNsi(";
+
+	/* Packed handle: the evicted flag (1 bit), index of the browser
+	 * context (31 bits) and id of the object in nsiArray (32 bits).
+	 * The id is kept when it is evicted, as the hash code of the proxy. */
+	volatile long handle;
+	/* Epoch of the document the proxy belongs to. It is not packed,
+	 * since a document may be replaced any number of times. */
+	final int epoch;
+	/* The proxy object (or stub) handled by this. */
+	Object proxy;
+	/* A lazy proxy has no id until it is pinned, but is defined
+	 * by its path. When the handle table is bounded, the path
+	 * is kept after pinning, to resolve the proxy again after eviction. */
+	volatile Path path;
+
 	public NsiProxy(Browser browser, int nsiId) {
-		this.browser = browser;
-		this.nsiId = nsiId;
+		this(AnyXPCOM.getContext(browser), nsiId);
+	}
+
+	private NsiProxy(BrowserContext context, int nsiId) {
+		this.handle = ((long) context.getIndex() << 32) | (nsiId & NO_ID);
+		this.epoch = context.getEpoch();
+	}
+
+	NsiProxy(NsiProxy parent, String member) {
+		this.handle = (parent.handle & CONTEXT_BITS) | NO_ID;
+		this.epoch = parent.epoch;
+		this.path = new Path(parent, member, null);
+	}
+
+	/**
+	 * Creates a placeholder of a {@link BridgeBatch}, standing for the JS
+	 * {@code variable} until the batch is sent.
+	 */
+	NsiProxy(BrowserContext context, String variable) {
+		this(context, -1);
+		this.path = new Path(null, null, variable);
+	}
+
+	/**
+	 * Returns the id of the object in {@code nsiArray}, or a negative
+	 * number if the proxy is not pinned or its id is evicted.
+	 */
+	int nsiId() {
+		long handle = this.handle;
+		return (handle & EVICTED) == 0 ? (int) handle : EVICTED_ID;
+	}
+
+	BrowserContext context() {
+		return BrowserContext.byIndex((int) ((handle & CONTEXT_BITS) >>> 32));
+	}
+
+	/**
+	 * Returns the call site of the {@code method}, cached by the context.
+	 */
+	CallSite callSite(Method method) {
+		BrowserContext context = context();
+		return context == null ? CallSite.create(method) : context.getTypeCache().getCallSite(method);
+	}
+
+	Browser browser() {
+		BrowserContext context = context();
+		return context == null ? null : context.getBrowser();
+	}
+
+	private void setNsiId(int nsiId) {
+		handle = (handle & CONTEXT_BITS) | (nsiId & NO_ID);
+	}
+
+	/**
+	 * Returns {@code true} if the proxy belongs to the same document
+	 * as the {@code other}.
+	 */
+	boolean isSameDocument(NsiProxy other) {
+		return (handle & CONTEXT_BITS) == (other.handle & CONTEXT_BITS) && epoch == other.epoch;
+	}
+
+	/**
+	 * Returns the handler of the {@code object} if it is a proxy
+	 * created by {@link AnyXPCOM}, or {@code null} otherwise.
+	 */
+	static NsiProxy getHandler(Object object) {
+		if (object instanceof NsiStub) {
+			return ((NsiStub) object).handler;
+		} else if (Proxy.isProxyClass(object.getClass())) {
+			Object handler = Proxy.getInvocationHandler(object);
+			if (handler instanceof NsiProxy) {
+				return (NsiProxy) handler;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the context of the proxy, or throws {@link XPCOMException}
+	 * if the document of the proxy is not loaded in the browser anymore.
+	 * So stale proxies fail without a call to the browser, and never
+	 * resolve to an object of another document.
+	 */
+	BrowserContext checkEpoch() {
+		BrowserContext context = context();
+		if (context == null || epoch != context.getEpoch()) {
+			throw new XPCOMException(XPCOM.NS_ERROR_NOT_AVAILABLE,
+					"The document of the object has been unloaded");
+		} else if (path == Path.FAILED) {
+			throw new XPCOMException(XPCOM.NS_ERROR_NOT_AVAILABLE,
+					"The object of the batch is not available");
+		}
+		return context;
+	}
+
+	/**
+	 * Appends JS expression giving the object of the proxy.
+	 */
+	void appendTarget(StringBuilder expression) {
+		int nsiId = nsiId();
+		if (nsiId >= 0) {
+			context().touch(nsiId);
+			expression.append("nsiArray[").append(nsiId).append(']');
+		} else if (path.parent != null) {
+			path.parent.appendTarget(expression);
+			expression.append(path.member);
+		} else {
+			expression.append('(').append(path.rootExpression).append(')');
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the proxy knows a path to resolve it again.
+	 */
+	boolean isResolvable() {
+		return path != null;
+	}
+
+	/**
+	 * Remembers that the proxy is the result of the {@code member}
+	 * of the {@code parent}, if paths are kept.
+	 */
+	void setOrigin(NsiProxy parent, String member) {
+		if (path == null && context().isBounded()) {
+			path = new Path(parent, member, null);
+		}
+	}
+
+	/**
+	 * Remembers that the proxy is the result of
+	 * the {@code rootExpression}, if paths are kept.
+	 */
+	void setOrigin(String rootExpression) {
+		if (path == null && context().isBounded()) {
+			path = new Path(null, null, rootExpression);
+		}
+	}
+
+	/**
+	 * Makes the proxy to have the same path as the {@code other}.
+	 */
+	void setOrigin(NsiProxy other) {
+		if (path == null && context().isBounded()) {
+			path = other.path;
+		}
+	}
+
+	/**
+	 * Called when the id of the proxy is evicted from {@code nsiArray}.
+	 * The proxy will be resolved by its path when it is used next time.
+	 */
+	void evict() {
+		handle |= EVICTED;
+	}
+
+	/**
+	 * Pins the proxy again if its id has been evicted, so that only
+	 * the first call after the eviction evaluates the path.
+	 */
+	private void repin() {
+		if (nsiId() == EVICTED_ID) {
+			pin();
+		}
+	}
+
+	/**
+	 * Called when the batch of a placeholder is sent, with the id
+	 * of its object, or {@code -1} if there is no object.
+	 */
+	void resolve(int nsiId) {
+		if (nsiId < 0) {
+			path = Path.FAILED;
+			return;
+		}
+		setNsiId(nsiId);
+		path = null;
+		context().track(this);
+	}
+
+	/**
+	 * Evaluates the path of a lazy proxy and registers its object
+	 * in {@code nsiArray}.
+	 *
+	 * @return id of the object
+	 */
+	int pin() {
+		if (nsiId() < 0) {
+			BrowserContext context = checkEpoch();
+			if (!context.isUiThread()) {
+				return context.getBridgeQueue().dispatch(new BridgeRequest.Expression<Integer>(
+						new BridgeFuture<Integer>(null)) {
+					private String target;
+
+					@Override
+					void appendExpression(StringBuilder script) {
+						checkEpoch();
+						int start = script.length();
+						appendTarget(script);
+						target = script.substring(start);
+					}
+
+					@Override
+					boolean isRead() {
+						return true;
+					}
+
+					@Override
+					Integer convert(Object value, Browser browser) {
+						if (nsiId() < 0) {
+							pinned(value, target);
+						}
+						return nsiId();
+					}
+				}, BridgeLane.getThreadLane());
+			}
+			StringBuilder target = new StringBuilder();
+			appendTarget(target);
+			Object value = context.evaluateRead(target.toString());
+			if (nsiId() < 0) { // not a placeholder resolved by the same script
+				pinned(value, target);
+			}
+		}
+		return nsiId();
+	}
+
+	/**
+	 * Registers the id of the object of a lazy proxy, the {@code value}
+	 * of its {@code target} expression.
+	 */
+	private void pinned(Object value, CharSequence target) {
+		BrowserContext context = context();
+		int id = AnyXPCOM.parseNsiId(value, context.isJsonResults());
+		if (id < 0) {
+			throw new XPCOMException("Not an object: " + target);
+		}
+		setNsiId(id);
+		if (!context.isBounded()) {
+			path = null;
+		}
+		context.track(this);
 	}
 
 	@Override
 	public Object invoke(Object proxy, Method method, Object[] args)
 			throws Throwable {
-		if ("getNsiId".equals(method.getName()) && args == null) {
-			return nsiId;
+		CallSite callSite = callSite(method);
+		switch (callSite.kind) {
+		case NSI_ID:
+			return pin();
+		case BROWSER:
+			return browser();
+		case EQUALS:
+			return isSame(args[0]);
+		case HASH_CODE:
+			return hash();
+		case GETTER:
+			return get(callSite);
 		}
-		if ("getBrowser".equals(method.getName()) && args == null) {
-			return browser;
+
+		StringBuilder call = beginCall(callSite);
+		if (call == null) {
+			return dispatch(callSite, args);
 		}
-		if ("equals".equals(method.getName()) && args != null && args.length == 1) {
-			Object obj = args[0];
-			if (obj instanceof NumeratedNsi) {
-				return this.nsiId == ((NumeratedNsi) obj).getNsiId();
-			} else {
-				return false;
+		if (args != null) {
+			for (int i = 0; i < args.length - 1; i++) {
+				Object arg = args[i];
+				appendArg(call, arg);
+				call.append(',');
+			}
+			if (args.length > 0) {
+				appendArg(call, args[args.length - 1]);
 			}
 		}
-		if ("hashCode".equals(method.getName()) && args == null) {
-			return nsiId;
-		}
-		Class<?> returnType = method.getReturnType();
-//		System.out.println("\n returnType = " + returnType.getCanonicalName());
-		StringBuilder expression = new StringBuilder();
-		expression.append("nsiArray[").append(nsiId).append("].");
-		// TODO generate correct js method name: without "getN..."
-		String methodName = method.getName();
-//		System.out.println(" methodName = " + methodName);
-		if (methodName.startsWith("get") && methodName.length() > 3 && args == null) {
-			char firstLetter = Character.toLowerCase(methodName.charAt(3));
-			String propertyName = firstLetter + methodName.substring(4);
-			expression.append(propertyName);
+		return endCall(callSite, call);
+	}
+
+	/**
+	 * Returns {@code true} if the {@code obj} is a proxy
+	 * of the same object. A proxy whose object is not available
+	 * (e.g. a lazy proxy of a stale document) equals only itself.
+	 */
+	boolean isSame(Object obj) {
+		NsiProxy objHandler = obj == null ? null : getHandler(obj);
+		if (obj == proxy) {
+			return true;
+		} else if (objHandler != null && !isSameDocument(objHandler)) {
+			return false;
+		} else if (obj instanceof NumeratedNsi) {
+			try {
+				return pin() == ((NumeratedNsi) obj).getNsiId();
+			} catch (XPCOMException e) {
+				return false;
+			}
 		} else {
-			expression.append(methodName).append('(');
-			if (args != null) {
-				for (int i = 0; i < args.length - 1; i++) {
-					Object arg = args[i];
-					appendArg(expression, arg);
-					expression.append(',');
-				}
-				if (args.length > 0) {
-					appendArg(expression, args[args.length - 1]);
-				}
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the hash code of the proxy: the id of its object, or the
+	 * identity hash code if the object is not available. An object keeps
+	 * its id while it has proxies, even if the id is evicted (see
+	 * {@link BrowserContext#setMaxHandles(int)}), and the proxies keep
+	 * the id when they become stale. So proxies may be kept in hash tables
+	 * whatever their state, and proxies of the same object have the same
+	 * hash code.
+	 */
+	int hash() {
+		int nsiId = (int) handle; // evicted too
+		if (nsiId < 0) {
+			try {
+				nsiId = pin();
+			} catch (XPCOMException e) {
+				return System.identityHashCode(proxy);
 			}
-			expression.append(')');
+		}
+		return nsiId;
+	}
+
+	/**
+	 * Calls a getter.
+	 */
+	Object get(CallSite callSite) {
+		if (callSite.isChainable && context().isLazyChaining()) {
+			checkEpoch();
+			return AnyXPCOM.createLazyProxy(this, callSite.member, callSite.returnType);
+		}
+		StringBuilder call = beginCall(callSite);
+		return call == null ? dispatch(callSite, null) : endCall(callSite, call);
+	}
+
+	/**
+	 * Starts the script of a call. Arguments of a method are to be
+	 * appended to it (separated by commas) before {@link #endCall}.
+	 * Returns {@code null} if the caller is not on the UI thread:
+	 * then the call has to be {@link #dispatch dispatched}.
+	 */
+	StringBuilder beginCall(CallSite callSite) {
+		if (!checkEpoch().isUiThread()) {
+			return null;
+		}
+		repin();
+		StringBuilder call = ArgEncoder.acquire();
+		if (!callSite.isVoid) {
+			call.append(RETURN_CONVERT);
+		}
+		appendTarget(call);
+		call.append(callSite.member);
+		return call;
+	}
+
+	/**
+	 * Completes the {@code call} started by {@link #beginCall},
+	 * sends it to the browser and returns the converted result.
+	 */
+	Object endCall(CallSite callSite, StringBuilder call) {
+		BrowserContext context = context();
+		if (callSite.kind == CallSite.Kind.METHOD) {
+			call.append(')');
+		}
+
+		BridgeBatch batch = context.getBatch();
+		boolean recorded = batch != null && BridgeBatch.isRecordable(callSite);
+		// arguments of repeatable calls are numbers, so the member is found exactly
+		String member = !recorded && !callSite.isVoid && callSite.isRepeatable
+				&& context.isBounded() ? call.substring(call.lastIndexOf(callSite.member)) : null;
+		String script;
+		if (callSite.isVoid) {
+			script = call.toString();
+		} else if (recorded || callSite.isRead) {
+			script = call.substring(RETURN_CONVERT.length());
+		} else {
+			script = call.append(')').toString();
+		}
+		ArgEncoder.release(call);
+		if (recorded) {
+			return context.record(callSite, script);
 		}
 
-//		System.out.println(" expression = " + expression);
 		Object result;
 		try {
-			if (returnType == void.class) {
-//			browser.execute(expression.toString());
-				browser.evaluate(expression.toString());
+			if (callSite.isVoid) {
+				context.write(script);
 				result = null;
-			} else { 
-				result = AnyXPCOM.queryInterface(expression.toString(), returnType, browser);
-			}			
+			} else {
+				Object value;
+				if (callSite.isRead) {
+					value = context.evaluateRead(script);
+				} else {
+					value = context.evaluate(script);
+				}
+				result = callSite.converter.convert(value, context.getBrowser());
+				setResultOrigin(result, member);
+			}
 		} catch (Exception e) {
 			result = null;// XXX
 		}
 		
 		return result;
-		
-//		try {
-//			returnType.cast(result);
-//		} catch (ClassCastException e) {
-//			System.out.println("!!! ClassCastException !!! Error in the Result TYPE !!!");
-//			return null;
-//		}
-
-	}
-
-	private void appendArg(StringBuilder expression, Object arg) {
-		if (arg == null) {
-			expression.append("null");
-		} else if (arg instanceof Number) {
-			expression.append(((Number) arg).doubleValue());
-		} else if (arg instanceof Boolean) {
-			expression.append(arg.toString());
-		} else if (arg instanceof String) {
-			String escapedArg = ((String) arg)
-					.replace("\\", "\\\\")
-					.replace("\n", "\\n")
-					.replace("\t", "\\t")
-					.replace("\r", "\\r")
-					.replace("\'", "\\\'")
-					.replace("\"", "\\\"");
-			expression.append('\'').append(escapedArg).append('\'');
-		} else if (arg instanceof NumeratedNsi) {
-			expression.append("window.nsiArray[" ).append(((NumeratedNsi) arg).getNsiId()).append(']');
-		} else if (arg.getClass().isArray()) {
-			int length = Array.getLength(arg);
-			expression.append('[');
-			for (int i = 0; i < length - 1; i++) {
-				appendArg(expression, Array.get(arg, i));
-				expression.append(',');
+	}
+
+	/**
+	 * Makes the call from a thread other than the UI thread. The call
+	 * is sent by the {@link BridgeQueue} of the browser, possibly in one
+	 * script with the calls of other threads, in the lane of the thread.
+	 * A failure of the call is thrown as it is, e.g. as XPCOMException.
+	 */
+	Object dispatch(CallSite callSite, Object[] args) {
+		repin();
+		return context().getBridgeQueue().dispatch(
+				newCallRequest(new BridgeFuture<Object>(null), callSite, args),
+				BridgeLane.getThreadLane());
+	}
+
+	/**
+	 * Creates the request of a call to be sent by a {@link BridgeQueue}.
+	 * The call is rendered and its result is converted on the UI thread.
+	 */
+	<V> BridgeRequest.Expression<V> newCallRequest(BridgeFuture<V> future,
+			final CallSite callSite, final Object[] args) {
+		return new BridgeRequest.Expression<V>(future) {
+			private String member;
+
+			@Override
+			void appendExpression(StringBuilder script) {
+				checkEpoch();
+				appendTarget(script);
+				int memberStart = script.length();
+				script.append(callSite.member);
+				if (callSite.kind == CallSite.Kind.METHOD) {
+					if (args != null) {
+						for (int i = 0; i < args.length; i++) {
+							if (i > 0) {
+								script.append(',');
+							}
+							appendArg(script, args[i]);
+						}
+					}
+					script.append(')');
+				}
+				if (callSite.isRepeatable && context().isBounded()) {
+					member = script.substring(memberStart);
+				}
 			}
-			if (length > 0) {
-				appendArg(expression, Array.get(arg, length - 1));
+
+			@Override
+			boolean isRead() {
+				return callSite.isRead;
 			}
-			expression.append(']');
+
+			@SuppressWarnings("unchecked")
+			@Override
+			V convert(Object value, Browser browser) {
+				Object result = callSite.converter.convert(value, browser);
+				setResultOrigin(result, member);
+				return (V) result;
+			}
+		};
+	}
+
+	private void setResultOrigin(Object result, String member) {
+		if (result != null && member != null) {
+			NsiProxy resultHandler = getHandler(result);
+			if (resultHandler != null) {
+				resultHandler.setOrigin(this, member);
+			}
+		}
+	}
+
+	void appendArg(StringBuilder expression, Object arg) {
+		ArgEncoder.append(expression, arg, this);
+	}
+
+	/**
+	 * Appends JS expression giving the object of the {@code nsi} argument.
+	 */
+	void appendNsi(StringBuilder expression, NumeratedNsi nsi) {
+		NsiProxy handler = getHandler(nsi);
+		if (handler != null) {
+			handler.checkEpoch();
+			handler.appendTarget(expression);
 		} else {
-			expression.append("null"); //XXX unknown type
+			expression.append("window.nsiArray[" ).append(nsi.getNsiId()).append(']');
+		}
+	}
+
+	/**
+	 * Path of a proxy: either a member of the parent proxy,
+	 * or a root expression.
+	 */
+	static final class Path {
+		/** path of a placeholder of a failed batch, or of a call giving no object */
+		static final Path FAILED = new Path(null, null, "undefined");
+
+		final NsiProxy parent;
+		final String member;
+		final String rootExpression;
+
+		Path(NsiProxy parent, String member, String rootExpression) {
+			this.parent = parent;
+			this.member = member;
+			this.rootExpression = rootExpression;
 		}
 	}
 }
@@ -0,0 +1,78 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.lang.reflect.Constructor;
+
+import org.eclipse.swt.browser.Browser;
+
+/**
+ * Base class of stubs generated by {@code StubGenerator} (a build tool
+ * in the {@code tools} folder). A stub
+ * implements an interface directly, so calls made through it are not
+ * dispatched reflectively. The state of the stub is kept by
+ * an {@link NsiProxy} exactly as for dynamic proxies.
+ */
+abstract class NsiStub implements NumeratedNsi {
+	private static final String STUB_SUFFIX = "Stub";
+	private static final CallSite TO_STRING = CallSite.method(".toString(", String.class, false);
+
+	final NsiProxy handler;
+
+	protected NsiStub(NsiProxy handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Returns the name of the stub class of the {@code type}. The name
+	 * is derived from the fully qualified name of the type, with
+	 * {@code '_'} doubled and {@code '.'} replaced by {@code '_'}, e.g.
+	 * {@code org_mozilla_interfaces_nsIDOMNodeStub}.
+	 */
+	static String getStubName(Class<?> type) {
+		String name = type.getName().replace("_", "__").replace('.', '_'); //$NON-NLS-1$ //$NON-NLS-2$
+		return NsiStub.class.getPackage().getName() + '.' + name + STUB_SUFFIX;
+	}
+
+	/**
+	 * Returns the constructor of the stub of the {@code type}, or
+	 * {@code null} if there is no stub generated for it.
+	 */
+	static Constructor<?> findConstructor(Class<?> type) {
+		try {
+			Class<?> stubClass = Class.forName(getStubName(type), true,
+					NsiStub.class.getClassLoader());
+			if (type.isAssignableFrom(stubClass) && NsiStub.class.isAssignableFrom(stubClass)) {
+				return stubClass.getDeclaredConstructor(NsiProxy.class);
+			}
+		} catch (ClassNotFoundException e) {
+			// it's OK, there is no stub
+		} catch (NoSuchMethodException e) {
+			// not a stub
+		}
+		return null;
+	}
+
+	public int getNsiId() {
+		return handler.pin();
+	}
+
+	public Browser getBrowser() {
+		return handler.browser();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return handler.isSame(obj);
+	}
+
+	@Override
+	public int hashCode() {
+		return handler.hash();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder call = handler.beginCall(TO_STRING);
+		return (String) (call == null
+				? handler.dispatch(TO_STRING, null) : handler.endCall(TO_STRING, call));
+	}
+}
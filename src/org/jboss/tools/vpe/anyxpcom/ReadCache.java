@@ -0,0 +1,37 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values of reads (getters, {@code item(index)}, {@code getAttribute(name)}
+ * and alike) evaluated by a {@link BrowserContext} in the current tick
+ * of the UI loop, by their JS expressions. The values are raw results
+ * of {@code convertNsi}. The cache is cleared by any script which may
+ * change the document.
+ */
+final class ReadCache {
+	static final Object MISS = new Object();
+
+	private final Map<String, Object> values = new HashMap<String, Object>();
+
+	/**
+	 * Returns the value of the {@code expression}, or {@link #MISS}.
+	 */
+	Object get(String expression) {
+		Object value = values.get(expression);
+		return value != null || values.containsKey(expression) ? value : MISS;
+	}
+
+	void put(String expression, Object value) {
+		values.put(expression, value);
+	}
+
+	boolean isEmpty() {
+		return values.isEmpty();
+	}
+
+	void clear() {
+		values.clear();
+	}
+}
@@ -0,0 +1,228 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.swt.browser.Browser;
+
+/**
+ * Converts values returned by {@link Browser#evaluate(String)}
+ * to a Java type. Converters are resolved once per type and cached,
+ * so converting a value takes no type checks but those of the value.
+ * <P>
+ * {@code null} elements of arrays of primitive types are converted
+ * to {@code 0} or {@code false}.
+ */
+abstract class ResultConverter {
+	static final ResultConverter VOID = new ResultConverter() {
+		@Override
+		Object convert(Object value, Browser browser) {
+			return null;
+		}
+	};
+
+	/** values of Boolean, String and Double types need no conversion */
+	private static final ResultConverter IDENTITY = new ResultConverter() {
+		@Override
+		Object convert(Object value, Browser browser) {
+			return value;
+		}
+	};
+
+	private static final ResultConverter INT = new ResultConverter() {
+		@Override
+		Object convert(Object value, Browser browser) {
+			return value instanceof Double ? Integer.valueOf(((Double) value).intValue()) : value;
+		}
+	};
+
+	private static final ResultConverter LONG = new ResultConverter() {
+		@Override
+		Object convert(Object value, Browser browser) {
+			return value instanceof Double ? Long.valueOf(((Double) value).longValue()) : value;
+		}
+	};
+
+	private static final ResultConverter INT_ARRAY = new ResultConverter() {
+		@Override
+		Object convert(Object value, Browser browser) {
+			if (!(value instanceof Object[])) {
+				return value;
+			}
+			Object[] values = (Object[]) value;
+			int[] result = new int[values.length];
+			for (int i = 0; i < values.length; i++) {
+				Object element = values[i];
+				if (element instanceof Number) {
+					result[i] = ((Number) element).intValue();
+				}
+			}
+			return result;
+		}
+	};
+
+	private static final ResultConverter LONG_ARRAY = new ResultConverter() {
+		@Override
+		Object convert(Object value, Browser browser) {
+			if (!(value instanceof Object[])) {
+				return value;
+			}
+			Object[] values = (Object[]) value;
+			long[] result = new long[values.length];
+			for (int i = 0; i < values.length; i++) {
+				Object element = values[i];
+				if (element instanceof Number) {
+					result[i] = ((Number) element).longValue();
+				}
+			}
+			return result;
+		}
+	};
+
+	private static final ResultConverter DOUBLE_ARRAY = new ResultConverter() {
+		@Override
+		Object convert(Object value, Browser browser) {
+			if (!(value instanceof Object[])) {
+				return value;
+			}
+			Object[] values = (Object[]) value;
+			double[] result = new double[values.length];
+			for (int i = 0; i < values.length; i++) {
+				Object element = values[i];
+				if (element instanceof Number) {
+					result[i] = ((Number) element).doubleValue();
+				}
+			}
+			return result;
+		}
+	};
+
+	private static final ResultConverter BOOLEAN_ARRAY = new ResultConverter() {
+		@Override
+		Object convert(Object value, Browser browser) {
+			if (!(value instanceof Object[])) {
+				return value;
+			}
+			Object[] values = (Object[]) value;
+			boolean[] result = new boolean[values.length];
+			for (int i = 0; i < values.length; i++) {
+				result[i] = Boolean.TRUE.equals(values[i]);
+			}
+			return result;
+		}
+	};
+
+	private static final ResultConverter STRING_ARRAY = new ResultConverter() {
+		@Override
+		Object convert(Object value, Browser browser) {
+			if (!(value instanceof Object[])) {
+				return value;
+			}
+			Object[] values = (Object[]) value;
+			String[] result = new String[values.length];
+			for (int i = 0; i < values.length; i++) {
+				Object element = values[i];
+				result[i] = element == null || element instanceof String
+						? (String) element : String.valueOf(element);
+			}
+			return result;
+		}
+	};
+
+	/* converters of the types of the JDK, never changed after the
+	 * initialization, so they are shared without locking */
+	private static final Map<Class<?>, ResultConverter> builtIn
+			= new HashMap<Class<?>, ResultConverter>();
+
+	static {
+		builtIn.put(void.class, VOID);
+		builtIn.put(Boolean.class, IDENTITY);
+		builtIn.put(boolean.class, IDENTITY);
+		builtIn.put(String.class, IDENTITY);
+		builtIn.put(Double.class, IDENTITY);
+		builtIn.put(double.class, IDENTITY);
+		builtIn.put(Integer.class, INT);
+		builtIn.put(int.class, INT);
+		builtIn.put(Long.class, LONG);
+		builtIn.put(long.class, LONG);
+		builtIn.put(int[].class, INT_ARRAY);
+		builtIn.put(long[].class, LONG_ARRAY);
+		builtIn.put(double[].class, DOUBLE_ARRAY);
+		builtIn.put(boolean[].class, BOOLEAN_ARRAY);
+		builtIn.put(String[].class, STRING_ARRAY);
+	}
+
+	abstract Object convert(Object value, Browser browser);
+
+	/**
+	 * Returns the converter to the {@code type}: a shared one for the
+	 * types of the JDK, or a new one. Converters of other types are
+	 * cached per browser by {@link TypeCache}, so they do not keep
+	 * classes of client bundles reachable.
+	 */
+	static ResultConverter forType(Class<?> type) {
+		ResultConverter converter = builtIn.get(type);
+		if (converter == null) {
+			if (type.isArray()) {
+				converter = new ArrayConverter(type.getComponentType());
+			} else if (type.isInterface()) {
+				converter = new InterfaceConverter(type);
+			} else {
+				converter = IDENTITY;
+			}
+		}
+		return converter;
+	}
+
+	/**
+	 * Converts handles to proxies of the type.
+	 */
+	private static final class InterfaceConverter extends ResultConverter {
+		private final Class<?> type;
+
+		InterfaceConverter(Class<?> type) {
+			this.type = type;
+		}
+
+		@Override
+		Object convert(Object value, Browser browser) {
+			int id = AnyXPCOM.parseNsiId(value,
+					AnyXPCOM.getContext(browser).isJsonResults());
+			return id >= 0 ? AnyXPCOM.createProxy(browser, id, type) : value;
+		}
+	}
+
+	/**
+	 * Converts arrays element by element.
+	 */
+	private static final class ArrayConverter extends ResultConverter {
+		private final Class<?> componentType;
+		private final ResultConverter componentConverter;
+
+		ArrayConverter(Class<?> componentType) {
+			this.componentType = componentType;
+			this.componentConverter = forType(componentType);
+		}
+
+		@Override
+		Object convert(Object value, Browser browser) {
+			if (!(value instanceof Object[])) {
+				return value;
+			}
+			Object[] values = (Object[]) value;
+			if (!componentType.isPrimitive()) {
+				Object[] result = (Object[]) Array.newInstance(componentType, values.length);
+				for (int i = 0; i < values.length; i++) {
+					result[i] = componentConverter.convert(values[i], browser);
+				}
+				return result;
+			}
+			Object result = Array.newInstance(componentType, values.length);
+			for (int i = 0; i < values.length; i++) {
+				Array.set(result, i, componentConverter.convert(values[i], browser));
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.eclipse.swt.browser.Browser;
+import org.mozilla.xpcom.XPCOMException;
+
+/**
+ * A string kept in the browser and transferred by chunks, returned by
+ * {@link AnyXPCOM#stageString(String, Browser)}. It is meant for large
+ * values, like {@code innerHTML} of a big document: the value is never
+ * copied across the bridge at once, and only one chunk is held in Java.
+ * So the consumer may start processing before the whole value arrives,
+ * and the memory it takes stays bounded.
+ * <P>
+ * Characters are read sequentially by {@link #openReader()}, or
+ * randomly through the {@link CharSequence} interface. The chunk
+ * containing the last character accessed is cached, so sequential
+ * {@link #charAt(int)} calls are cheap. Chunks never split a surrogate
+ * pair, since a lone surrogate may not survive the transfer.
+ * {@link #toString()} transfers the whole value.
+ * <P>
+ * The string must be {@link #release() released} when it is not needed
+ * anymore, otherwise the browser keeps it until the document is
+ * unloaded. Like the {@link Browser} itself, it must be accessed from
+ * the UI thread only.
+ */
+public final class StagedString implements CharSequence {
+	private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	private final BrowserContext context;
+	private final int id;
+	private final int length;
+	private final int epoch;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private String chunk = ""; //$NON-NLS-1$
+	private int chunkStart;
+	private boolean released;
+
+	private StagedString(BrowserContext context, int id, int length) {
+		this.context = context;
+		this.id = id;
+		this.length = length;
+		this.epoch = context.getEpoch();
+	}
+
+	/**
+	 * Evaluates the {@code jsExpression} and keeps its value as a string
+	 * in the browser.
+	 *
+	 * @return the staged string, or {@code null} if the value is
+	 * {@code null} or {@code undefined}
+	 */
+	static StagedString stage(BrowserContext context, String jsExpression) {
+		Object result = context.evaluate(
+				"var s=" + jsExpression + ";" + //$NON-NLS-1$ //$NON-NLS-2$
+				"if(s===null||s===undefined)return null;" + //$NON-NLS-1$
+				"s=String(s);" + //$NON-NLS-1$
+				"var st=window.nsiStaged||(window.nsiStaged={})," + //$NON-NLS-1$
+				"id=window.nsiStagedNext=(window.nsiStagedNext||0)+1;" + //$NON-NLS-1$
+				"st[id]=s;" + //$NON-NLS-1$
+				"return [id,s.length];", true); //$NON-NLS-1$
+		if (result == null) {
+			return null;
+		}
+		Object[] staged = (Object[]) result;
+		return new StagedString(context, ((Number) staged[0]).intValue(),
+				((Number) staged[1]).intValue());
+	}
+
+	public Browser getBrowser() {
+		return context.getBrowser();
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets the number of characters transferred at once (64K by default).
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size: " + chunkSize); //$NON-NLS-1$
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index: " + index); //$NON-NLS-1$
+		}
+		if (index < chunkStart || index >= chunkStart + chunk.length()) {
+			// sequential access continues from the end of the cached chunk
+			fetchChunk(index == chunkStart + chunk.length() ? index : index - index % chunkSize);
+			if (index >= chunkStart + chunk.length()) {
+				// the chunk has stopped short of a surrogate pair
+				fetchChunk(index);
+			}
+		}
+		return chunk.charAt(index - chunkStart);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Range: " + start + ", " + end); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		if (start >= chunkStart && end <= chunkStart + chunk.length()) {
+			return chunk.substring(start - chunkStart, end - chunkStart);
+		}
+		return fetch(start, end);
+	}
+
+	/**
+	 * Returns the whole value, transferred at once.
+	 */
+	@Override
+	public String toString() {
+		return fetch(0, length);
+	}
+
+	/**
+	 * Returns a reader of the value, transferring it by chunks.
+	 * Closing the reader releases the string.
+	 */
+	public Reader openReader() {
+		return new Reader() {
+			private String buffer = ""; //$NON-NLS-1$
+			private int bufferPosition;
+			private int position;
+
+			@Override
+			public int read(char[] chars, int offset, int count) throws IOException {
+				if (bufferPosition == buffer.length()) {
+					if (position == length) {
+						return -1;
+					}
+					Object[] fetched;
+					try {
+						fetched = fetchChunk(position, Math.min(position + chunkSize, length));
+					} catch (RuntimeException e) {
+						IOException exception = new IOException(e.getMessage());
+						exception.initCause(e);
+						throw exception;
+					}
+					buffer = (String) fetched[1];
+					bufferPosition = position - ((Number) fetched[0]).intValue();
+				}
+				int read = Math.min(count, buffer.length() - bufferPosition);
+				buffer.getChars(bufferPosition, bufferPosition + read, chars, offset);
+				bufferPosition += read;
+				position += read;
+				return read;
+			}
+
+			@Override
+			public void close() {
+				buffer = ""; //$NON-NLS-1$
+				release();
+			}
+		};
+	}
+
+	/**
+	 * Drops the value in the browser. Does nothing if the string
+	 * has been released already.
+	 */
+	public void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		chunk = ""; //$NON-NLS-1$
+		if (context.getEpoch() == epoch && !context.getBrowser().isDisposed()) {
+			context.write("delete nsiStaged[" + id + "]"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	private String fetch(int start, int end) {
+		checkAvailable();
+		return (String) context.evaluate("return nsiStaged[" + id + "].substring(" //$NON-NLS-1$ //$NON-NLS-2$
+				+ start + ',' + end + ')', true);
+	}
+
+	/**
+	 * Fetches the chunk starting about the {@code start} into the cache.
+	 */
+	private void fetchChunk(int start) {
+		Object[] fetched = fetchChunk(start, Math.min(start + chunkSize, length));
+		chunkStart = ((Number) fetched[0]).intValue();
+		chunk = (String) fetched[1];
+	}
+
+	/**
+	 * Fetches the characters from {@code start} to {@code end}, moved so
+	 * that no surrogate pair is split: the start is moved back by one
+	 * if it is preceded by a high surrogate, and the end is moved back
+	 * by one if it follows a high surrogate (or forward, if the chunk
+	 * would be empty).
+	 *
+	 * @return the actual start and the characters
+	 */
+	private Object[] fetchChunk(int start, int end) {
+		checkAvailable();
+		return (Object[]) context.evaluate(
+				"var s=nsiStaged[" + id + "],b=" + start + ",e=" + end + ";" + //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				"function hi(i){var c=s.charCodeAt(i);return c>=0xD800&&c<=0xDBFF}" + //$NON-NLS-1$
+				"if(b>0&&hi(b-1))b--;" + //$NON-NLS-1$
+				"if(e<s.length&&hi(e-1))e+=e-1>b?-1:1;" + //$NON-NLS-1$
+				"return [b,s.substring(b,e)];", true); //$NON-NLS-1$
+	}
+
+	private void checkAvailable() {
+		if (released) {
+			throw new IllegalStateException("The string has been released"); //$NON-NLS-1$
+		} else if (context.getEpoch() != epoch) {
+			throw new XPCOMException(XPCOM.NS_ERROR_NOT_AVAILABLE,
+					"The document of the string has been unloaded");
+		}
+	}
+}
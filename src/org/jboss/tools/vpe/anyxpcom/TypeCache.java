@@ -0,0 +1,99 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Converters, call sites and proxy constructors of the types used with
+ * a browser. The cache is kept by the {@link BrowserContext} and dropped
+ * with it, so the interfaces of client bundles (and their class loaders)
+ * are not kept reachable after their browsers are disposed, as they
+ * would be by process-wide caches.
+ * <P>
+ * The cache may be used from any thread.
+ */
+final class TypeCache {
+	private final ConcurrentMap<Class<?>, ResultConverter> converters
+			= new ConcurrentHashMap<Class<?>, ResultConverter>();
+	/* Constructors of stubs or proxy classes by interfaces,
+	 * both take the handler as the only argument. */
+	private final ConcurrentMap<Class<?>, Constructor<?>> proxyConstructors
+			= new ConcurrentHashMap<Class<?>, Constructor<?>>();
+	private final ConcurrentMap<Method, CallSite> callSites
+			= new ConcurrentHashMap<Method, CallSite>();
+
+	ResultConverter getConverter(Class<?> type) {
+		ResultConverter converter = converters.get(type);
+		if (converter == null) {
+			converter = ResultConverter.forType(type);
+			converters.put(type, converter);
+		}
+		return converter;
+	}
+
+	/**
+	 * Returns the call site of the {@code method}. Call sites are built
+	 * at once for all methods of the interface declaring the method.
+	 */
+	CallSite getCallSite(Method method) {
+		CallSite callSite = callSites.get(method);
+		if (callSite == null) {
+			for (Method interfaceMethod : method.getDeclaringClass().getMethods()) {
+				callSites.put(interfaceMethod, CallSite.create(interfaceMethod));
+			}
+			callSite = callSites.get(method);
+		}
+		return callSite;
+	}
+
+	/**
+	 * Returns the constructor of the generated stub of the {@code type}
+	 * if there is one (see {@link NsiStub}), or of a dynamic proxy class
+	 * otherwise.
+	 */
+	Constructor<?> getProxyConstructor(Class<?> type) {
+		Constructor<?> constructor = proxyConstructors.get(type);
+		if (constructor == null) {
+			constructor = findProxyConstructor(type);
+			proxyConstructors.put(type, constructor);
+		}
+		return constructor;
+	}
+
+	static Constructor<?> findProxyConstructor(Class<?> type) {
+		Constructor<?> constructor = NsiStub.findConstructor(type);
+		if (constructor == null) {
+			try {
+				constructor = Proxy.getProxyClass(getProxyLoader(type),
+						type, NumeratedNsi.class).getConstructor(InvocationHandler.class);
+			} catch (NoSuchMethodException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return constructor;
+	}
+
+	/**
+	 * Returns the class loader to define the proxy class of the
+	 * {@code type} in: the loader of the type if it sees this bundle,
+	 * so the proxy class goes away with it, or the loader of this bundle.
+	 */
+	private static ClassLoader getProxyLoader(Class<?> type) {
+		ClassLoader loader = type.getClassLoader();
+		if (loader != null) {
+			try {
+				if (Class.forName(NumeratedNsi.class.getName(), false, loader)
+						== NumeratedNsi.class) {
+					return loader;
+				}
+			} catch (ClassNotFoundException e) {
+				// it's OK, the bundle of the type does not import this one
+			}
+		}
+		return AnyXPCOM.class.getClassLoader();
+	}
+}
@@ -0,0 +1,263 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTException;
+import org.mozilla.xpcom.XPCOMException;
+
+/**
+ * JSON encoding of the results of scripts, used when
+ * {@link BrowserContext#setJsonResults(boolean) enabled}. A script is
+ * wrapped so that the browser returns one string encoding its result
+ * by {@code encodeNsi} of the runtime:
+ * <ul>
+ * <li>{@code null}, booleans, finite numbers, strings and arrays
+ * as in JSON,</li>
+ * <li>handles as <code>{"h":id}</code>,</li>
+ * <li>{@code NaN} and infinities as <code>{"n":"NaN"}</code>,</li>
+ * <li>a failure of the script as <code>{"e":"message"}</code>.</li>
+ * </ul>
+ * So handles are never confused with strings, and SWT converts one
+ * string instead of a graph of arrays.
+ * <P>
+ * The result is decoded in one pass into the types SWT returns
+ * ({@code Object[]}, {@code Double}, {@code String}, {@code Boolean}),
+ * except for handles, which are decoded into their ids as
+ * {@code Integer}s (see {@link AnyXPCOM#parseNsiId(Object, boolean)}).
+ * Strings are never taken for handles then.
+ */
+final class WireFormat {
+	private static final String PREFIX
+			= "nsiJson=true;try{return encodeNsi((function(){"; //$NON-NLS-1$
+	private static final String SUFFIX
+			= "})())}catch(e){return '{\"e\":'+quoteNsi(''+e)+'}'}finally{nsiJson=false}"; //$NON-NLS-1$
+
+	private final String text;
+	private int position;
+
+	private WireFormat(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Wraps the {@code script} to return its encoded result.
+	 */
+	static String wrap(CharSequence script) {
+		return new StringBuilder(PREFIX.length() + script.length() + SUFFIX.length())
+				.append(PREFIX).append(script).append(SUFFIX).toString();
+	}
+
+	/**
+	 * Decodes the result of a script {@link #wrap(CharSequence) wrapped}.
+	 *
+	 * @throws SWTException if the script has failed
+	 */
+	static Object decode(Object result) {
+		if (!(result instanceof String)) {
+			throw new XPCOMException("Malformed result: " + result); //$NON-NLS-1$
+		}
+		WireFormat format = new WireFormat((String) result);
+		Object value = format.readValue();
+		if (format.position != format.text.length()) {
+			throw format.malformed();
+		}
+		return value;
+	}
+
+	private Object readValue() {
+		if (position >= text.length()) {
+			throw malformed();
+		}
+		char c = text.charAt(position);
+		switch (c) {
+		case '"':
+			return readString();
+		case '[':
+			return readArray();
+		case '{':
+			return readTagged();
+		case 'n':
+			readLiteral("null"); //$NON-NLS-1$
+			return null;
+		case 't':
+			readLiteral("true"); //$NON-NLS-1$
+			return Boolean.TRUE;
+		case 'f':
+			readLiteral("false"); //$NON-NLS-1$
+			return Boolean.FALSE;
+		default:
+			return readNumber();
+		}
+	}
+
+	private void readLiteral(String literal) {
+		if (!text.startsWith(literal, position)) {
+			throw malformed();
+		}
+		position += literal.length();
+	}
+
+	private Object[] readArray() {
+		position++; // [
+		if (peek() == ']') {
+			position++;
+			return new Object[0];
+		}
+		List<Object> values = new ArrayList<Object>();
+		while (true) {
+			values.add(readValue());
+			char c = next();
+			if (c == ']') {
+				return values.toArray();
+			} else if (c != ',') {
+				throw malformed();
+			}
+		}
+	}
+
+	private Object readTagged() {
+		position++; // {
+		String tag = readString();
+		if (next() != ':') {
+			throw malformed();
+		}
+		Object value = readValue();
+		if (next() != '}') {
+			throw malformed();
+		}
+		if ("h".equals(tag) && value instanceof Double) { //$NON-NLS-1$
+			return Integer.valueOf(((Double) value).intValue());
+		} else if ("n".equals(tag)) { //$NON-NLS-1$
+			return Double.valueOf(String.valueOf(value));
+		} else if ("e".equals(tag)) { //$NON-NLS-1$
+			throw new SWTException(SWT.ERROR_FAILED_EVALUATE, String.valueOf(value));
+		}
+		throw malformed();
+	}
+
+	private String readString() {
+		if (next() != '"') {
+			throw malformed();
+		}
+		int start = position;
+		int end = start;
+		// most strings have no escapes, they are taken at once
+		while (end < text.length()) {
+			char c = text.charAt(end);
+			if (c == '"') {
+				position = end + 1;
+				return text.substring(start, end);
+			} else if (c == '\\') {
+				break;
+			}
+			end++;
+		}
+		StringBuilder value = new StringBuilder(end - start + 16);
+		value.append(text, start, end);
+		position = end;
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return value.toString();
+			} else if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			c = next();
+			switch (c) {
+			case 'n':
+				value.append('\n');
+				break;
+			case 'r':
+				value.append('\r');
+				break;
+			case 't':
+				value.append('\t');
+				break;
+			case 'b':
+				value.append('\b');
+				break;
+			case 'f':
+				value.append('\f');
+				break;
+			case 'u':
+				if (position + 4 > text.length()) {
+					throw malformed();
+				}
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(text.charAt(position++), 16);
+					if (digit < 0) {
+						throw malformed();
+					}
+					code = code * 16 + digit;
+				}
+				value.append((char) code);
+				break;
+			default:
+				// \" \\ \/
+				value.append(c);
+			}
+		}
+	}
+
+	private Double readNumber() {
+		int start = position;
+		boolean negative = false;
+		if (peek() == '-') {
+			negative = true;
+			position++;
+		}
+		long integer = 0;
+		int digits = 0;
+		while (position < text.length()) {
+			int digit = text.charAt(position) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			integer = integer * 10 + digit;
+			digits++;
+			position++;
+		}
+		if (position < text.length() && isFraction(text.charAt(position)) || digits > 15) {
+			// not a safe integer, parsed by the JDK
+			while (position < text.length() && isNumberChar(text.charAt(position))) {
+				position++;
+			}
+			try {
+				return Double.valueOf(text.substring(start, position));
+			} catch (NumberFormatException e) {
+				throw malformed();
+			}
+		} else if (digits == 0) {
+			throw malformed();
+		}
+		return Double.valueOf(negative ? -integer : integer);
+	}
+
+	private static boolean isFraction(char c) {
+		return c == '.' || c == 'e' || c == 'E';
+	}
+
+	private static boolean isNumberChar(char c) {
+		return c >= '0' && c <= '9' || c == '-' || c == '+' || isFraction(c);
+	}
+
+	private char peek() {
+		return position < text.length() ? text.charAt(position) : 0;
+	}
+
+	private char next() {
+		if (position >= text.length()) {
+			throw malformed();
+		}
+		return text.charAt(position++);
+	}
+
+	private XPCOMException malformed() {
+		return new XPCOMException("Malformed result at " + position + ": " //$NON-NLS-1$ //$NON-NLS-2$
+				+ (text.length() > 64 ? text.substring(0, 64) + "..." : text)); //$NON-NLS-1$
+	}
+}
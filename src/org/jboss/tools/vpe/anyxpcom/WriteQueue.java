@@ -0,0 +1,50 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+/**
+ * Void calls deferred for one {@link BrowserContext}. Every call is wrapped
+ * into its own {@code try} block, so a failing call does not prevent
+ * the following ones from running (as it was when each call had been
+ * evaluated separately).
+ */
+final class WriteQueue {
+	private final StringBuilder script = new StringBuilder();
+	private int size;
+	private long firstCallTime;
+
+	void add(String statement) {
+		if (size == 0) {
+			firstCallTime = System.currentTimeMillis();
+		}
+		script.append("try{").append(statement).append(";}catch(e){}");
+		size++;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int length() {
+		return script.length();
+	}
+
+	long getFirstCallTime() {
+		return firstCallTime;
+	}
+
+	/**
+	 * Returns the script of all queued calls and empties the queue.
+	 */
+	String drain() {
+		if (size == 0) {
+			return "";
+		}
+		String result = script.toString();
+		script.setLength(0);
+		size = 0;
+		return result;
+	}
+}
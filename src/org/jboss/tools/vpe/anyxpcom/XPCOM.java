@@ -47,6 +47,8 @@ public final class XPCOM {
 	public static final String NS_IAPPSHELL_CID = "2d96b3df-c051-11d1-a827-0040959a28c9"; //$NON-NLS-1$
 	
 	public static final long NS_ERROR_NO_INTERFACE =  0x80004002L;
+	public static final long NS_ERROR_ABORT =  0x80004004L;
+	public static final long NS_ERROR_NOT_AVAILABLE =  0x80040111L;
 	
 	/**Stores all interfaces which extend nsISupports. */
 	/* Lazy initialization of interfacesList is used to avoid loading
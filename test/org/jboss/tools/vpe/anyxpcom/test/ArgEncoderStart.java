@@ -0,0 +1,145 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+
+/**
+ * Compares the allocation rate and the speed of the argument encoder
+ * with the encoder it has replaced. No browser is needed. The allocation
+ * is measured only if the JVM counts the bytes allocated by threads.
+ */
+public class ArgEncoderStart {
+	private static final int CALLS = 200000;
+	private static final Object[] ARGS = {
+		"It's a \"quoted\"\nstring", Integer.valueOf(42),
+		new double[] {0, 1.5, 2, 3, 4, 5, 6, 7}, new int[] {0, 1, 2, 3, 4, 5, 6, 7},
+		Boolean.TRUE
+	};
+	private static final Method ALLOCATED_BYTES = findAllocatedBytes();
+
+	public static void main(String[] args) throws Exception {
+		// the encoder is internal to the bridge
+		Class<?> encoder = Class.forName("org.jboss.tools.vpe.anyxpcom.ArgEncoder");
+		Method acquire = encoder.getDeclaredMethod("acquire");
+		Method append = encoder.getDeclaredMethod("append", StringBuilder.class, Object.class,
+				Class.forName("org.jboss.tools.vpe.anyxpcom.NsiProxy"));
+		Method release = encoder.getDeclaredMethod("release", StringBuilder.class);
+		acquire.setAccessible(true);
+		append.setAccessible(true);
+		release.setAccessible(true);
+
+		for (int round = 0; round < 3; round++) {
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < CALLS; i++) {
+				StringBuilder call = new StringBuilder("nsiArray[3].f(");
+				for (int j = 0; j < ARGS.length; j++) {
+					if (j > 0) {
+						call.append(',');
+					}
+					appendLegacy(call, ARGS[j]);
+				}
+				call.append(')');
+			}
+			report("legacy ", bytes, start);
+
+			// invoke arguments are reused, so reflection allocates nothing
+			Object[] acquireArgs = new Object[0];
+			Object[] appendArgs = new Object[3];
+			Object[] releaseArgs = new Object[1];
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < CALLS; i++) {
+				StringBuilder call = (StringBuilder) acquire.invoke(null, acquireArgs);
+				call.append("nsiArray[3].f(");
+				appendArgs[0] = call;
+				for (int j = 0; j < ARGS.length; j++) {
+					if (j > 0) {
+						call.append(',');
+					}
+					appendArgs[1] = ARGS[j];
+					append.invoke(null, appendArgs);
+				}
+				call.append(')');
+				releaseArgs[0] = call;
+				release.invoke(null, releaseArgs);
+			}
+			report("encoder", bytes, start);
+		}
+	}
+
+	private static void report(String name, long bytes, long start) {
+		long time = System.nanoTime() - start;
+		String allocated = bytes < 0 ? "allocation not measured"
+				: (allocatedBytes() - bytes) / CALLS + " bytes";
+		System.out.println(name + ": " + allocated + ", " + time / CALLS + " ns per call");
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread,
+	 * or {@code -1} if the JVM does not count them.
+	 */
+	private static long allocatedBytes() {
+		if (ALLOCATED_BYTES == null) {
+			return -1;
+		}
+		try {
+			return (Long) ALLOCATED_BYTES.invoke(ManagementFactory.getThreadMXBean(),
+					Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/* The counter is an extension of HotSpot and alike, not a part
+	 * of java.lang.management, so it is looked up reflectively. */
+	private static Method findAllocatedBytes() {
+		try {
+			Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+			if (type.isInstance(ManagementFactory.getThreadMXBean())) {
+				return type.getMethod("getThreadAllocatedBytes", long.class);
+			}
+		} catch (ClassNotFoundException e) {
+			// not supported by the JVM
+		} catch (NoSuchMethodException e) {
+			// not supported by the JVM
+		}
+		return null;
+	}
+
+	/**
+	 * The encoding of arguments as NsiProxy did it before ArgEncoder.
+	 */
+	private static void appendLegacy(StringBuilder expression, Object arg) {
+		if (arg == null) {
+			expression.append("null");
+		} else if (arg instanceof Number) {
+			expression.append(((Number) arg).doubleValue());
+		} else if (arg instanceof Boolean) {
+			expression.append(arg.toString());
+		} else if (arg instanceof String) {
+			String escapedArg = ((String) arg)
+					.replace("\\", "\\\\")
+					.replace("\n", "\\n")
+					.replace("\t", "\\t")
+					.replace("\r", "\\r")
+					.replace("\'", "\\\'")
+					.replace("\"", "\\\"");
+			expression.append('\'').append(escapedArg).append('\'');
+		} else if (arg.getClass().isArray()) {
+			int length = Array.getLength(arg);
+			expression.append('[');
+			for (int i = 0; i < length - 1; i++) {
+				appendLegacy(expression, Array.get(arg, i));
+				expression.append(',');
+			}
+			if (length > 0) {
+				appendLegacy(expression, Array.get(arg, length - 1));
+			}
+			expression.append(']');
+		} else {
+			expression.append("null");
+		}
+	}
+}
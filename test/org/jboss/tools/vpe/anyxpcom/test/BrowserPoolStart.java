@@ -0,0 +1,96 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.jboss.tools.vpe.anyxpcom.AnyXPCOM;
+import org.jboss.tools.vpe.anyxpcom.BridgeFuture;
+import org.jboss.tools.vpe.anyxpcom.BrowserPool;
+import org.mozilla.interfaces.nsIDOMNode;
+
+/**
+ * Drives a {@link BrowserPool} of browsers through a batch of documents,
+ * and checks that every document is processed once through proxies of
+ * AnyXPCOM. Then checks that disposing a pool during a run fails the run.
+ */
+public class BrowserPoolStart {
+	private static final int SIZE = 3;
+	private static final int DOCUMENTS = 20;
+
+	public static void main(String[] args) throws Exception {
+		Display display = new Display();
+		Shell shell = new Shell(display);
+		shell.setLayout(new FillLayout());
+		BrowserPool<Browser> pool;
+		try {
+			pool = new BrowserPool<Browser>(BrowserPool.browsers(shell, SWT.NONE), SIZE);
+		} catch (SWTError e) {
+			System.out.println("Could not instantiate Browser: " + e.getMessage());
+			display.dispose();
+			return;
+		}
+		shell.open();
+
+		List<String> documents = new ArrayList<String>();
+		List<String> texts = new ArrayList<String>();
+		for (int i = 0; i < DOCUMENTS; i++) {
+			documents.add("<html><body><p>" + i + "</p></body></html>");
+			texts.add(String.valueOf(i));
+		}
+		final List<String> processed = new ArrayList<String>();
+		final List<Browser> workers = new ArrayList<Browser>();
+		BridgeFuture<Integer> result = pool.process(documents.iterator(),
+				new BrowserPool.Processor<Browser>() {
+			public void process(BrowserPool.Lease<Browser> lease) {
+				Browser browser = lease.getWorker();
+				nsIDOMNode paragraph = AnyXPCOM.queryInterface(
+						"document.getElementsByTagName('p')[0]", nsIDOMNode.class, browser);
+				processed.add(paragraph.getFirstChild().getNodeValue());
+				if (!workers.contains(browser)) {
+					workers.add(browser);
+				}
+			}
+		});
+		waitFor(result, display);
+		System.out.println("processed: " + result.get() + " of " + DOCUMENTS
+				+ ", in order: " + processed.equals(texts)
+				+ ", workers used: " + workers.size() + " of " + pool.getSize()
+				+ ", idle: " + pool.getIdleCount());
+		pool.dispose();
+
+		final BrowserPool<Browser> disposedPool = new BrowserPool<Browser>(
+				BrowserPool.browsers(shell, SWT.NONE), SIZE);
+		final int[] count = new int[1];
+		result = disposedPool.process(documents.iterator(),
+				new BrowserPool.Processor<Browser>() {
+			public void process(BrowserPool.Lease<Browser> lease) {
+				if (++count[0] == DOCUMENTS / 2) {
+					disposedPool.dispose();
+				}
+			}
+		});
+		waitFor(result, display);
+		try {
+			System.out.println("disposed during the run, but completed: " + result.get());
+		} catch (ExecutionException e) {
+			System.out.println("disposed during the run after " + count[0]
+					+ " documents: " + e.getCause().getMessage());
+		}
+
+		shell.close();
+		display.dispose();
+	}
+
+	private static void waitFor(BridgeFuture<?> result, Display display) {
+		while (!result.isDone()) {
+			if (!display.readAndDispatch()) display.sleep();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.browser.ProgressAdapter;
+import org.eclipse.swt.browser.ProgressEvent;
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.jboss.tools.vpe.anyxpcom.AnyXPCOM;
+import org.jboss.tools.vpe.anyxpcom.BridgeLane;
+import org.jboss.tools.vpe.anyxpcom.BrowserContext;
+import org.jboss.tools.vpe.anyxpcom.XPCOM;
+import org.mozilla.interfaces.nsIDOMNode;
+import org.mozilla.xpcom.XPCOMException;
+
+/**
+ * Makes a call through a proxy from a worker thread, cancels the lane
+ * of the worker while the call waits in the queue, and checks that
+ * the call fails with {@link XPCOMException} and
+ * {@link XPCOM#NS_ERROR_ABORT}.
+ */
+public class CancellationStart {
+	public static void main(String[] args) {
+		final Display display = new Display();
+		final Shell shell = new Shell(display);
+		shell.setLayout(new FillLayout());
+		final Browser browser;
+		try {
+			browser = new Browser(shell, SWT.NONE);
+		} catch (SWTError e) {
+			System.out.println("Could not instantiate Browser: " + e.getMessage());
+			display.dispose();
+			return;
+		}
+		shell.open();
+		browser.addProgressListener(new ProgressAdapter() {
+			@Override
+			public void completed(ProgressEvent event) {
+				browser.removeProgressListener(this);
+				check(browser, display);
+				shell.close();
+			}
+		});
+		browser.setText("<html><body></body></html>");
+
+		while (!shell.isDisposed()) {
+			if (!display.readAndDispatch()) display.sleep();
+		}
+		display.dispose();
+	}
+
+	private static void check(Browser browser, Display display) {
+		AnyXPCOM.initBrowser(browser);
+		BrowserContext context = AnyXPCOM.getContext(browser);
+		// the call waits for the window long enough to be cancelled
+		context.setDispatchWindow(2000);
+		final nsIDOMNode body = AnyXPCOM.queryInterface("document.body", nsIDOMNode.class, browser);
+		final Object[] result = new Object[1];
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				BridgeLane.setThreadLane(BridgeLane.BULK);
+				try {
+					result[0] = body.getNodeName();
+				} catch (Throwable e) {
+					result[0] = e;
+				}
+			}
+		});
+		worker.start();
+		while (context.getLaneStats(BridgeLane.BULK).getQueueDepth() == 0 && worker.isAlive()) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		int cancelled = AnyXPCOM.async(browser).inLane(BridgeLane.BULK).cancelPending();
+		while (worker.isAlive()) {
+			if (!display.readAndDispatch()) display.sleep();
+		}
+
+		boolean aborted = result[0] instanceof XPCOMException
+				&& ((XPCOMException) result[0]).errorcode == XPCOM.NS_ERROR_ABORT;
+		System.out.println("cancelled: " + cancelled + ", the call has given: " + result[0]
+				+ (cancelled == 1 && aborted ? " - OK" : " - FAILED, NS_ERROR_ABORT expected"));
+	}
+}
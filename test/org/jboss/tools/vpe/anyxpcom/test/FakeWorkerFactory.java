@@ -0,0 +1,116 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.tools.vpe.anyxpcom.BrowserPool;
+
+/**
+ * In-process stand-in for browsers in a {@link BrowserPool}. A load of
+ * a document starting with {@code "fail:"} cannot be started. Other loads
+ * complete at once, or, in the deferred mode, wait until they are
+ * completed by {@link #complete(int)}.
+ */
+public class FakeWorkerFactory implements BrowserPool.WorkerFactory<FakeWorkerFactory.Worker> {
+	public static final String FAILING_PREFIX = "fail:";
+
+	/**
+	 * Fake worker holding the last loaded document.
+	 */
+	public static final class Worker {
+		private final int index;
+		private String document;
+		private boolean disposed;
+
+		Worker(int index) {
+			this.index = index;
+		}
+
+		public String getDocument() {
+			return document;
+		}
+
+		public boolean isDisposed() {
+			return disposed;
+		}
+
+		@Override
+		public String toString() {
+			return "worker" + index;
+		}
+	}
+
+	private final boolean deferred;
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private final List<Worker> loading = new ArrayList<Worker>();
+	private final List<String> loadingDocuments = new ArrayList<String>();
+	private final List<Runnable> loaded = new ArrayList<Runnable>();
+
+	/**
+	 * @param deferred {@code true} if loads wait for {@link #complete(int)}
+	 */
+	public FakeWorkerFactory(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+	public Worker create() {
+		Worker worker = new Worker(workers.size());
+		workers.add(worker);
+		return worker;
+	}
+
+	public void load(Worker worker, String document, Runnable loaded) {
+		if (worker.disposed) {
+			throw new IllegalStateException(worker + " is disposed");
+		}
+		if (document.startsWith(FAILING_PREFIX)) {
+			throw new IllegalArgumentException("Could not load " + document);
+		}
+		if (deferred) {
+			loading.add(worker);
+			loadingDocuments.add(document);
+			this.loaded.add(loaded);
+		} else {
+			worker.document = document;
+			loaded.run();
+		}
+	}
+
+	public void dispose(Worker worker) {
+		worker.disposed = true;
+	}
+
+	public List<Worker> getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Returns the number of loads waiting for completion.
+	 */
+	public int getLoadingCount() {
+		return loading.size();
+	}
+
+	public String getLoadingDocument(int index) {
+		return loadingDocuments.get(index);
+	}
+
+	/**
+	 * Completes the waiting load with the {@code index}.
+	 */
+	public void complete(int index) {
+		Worker worker = loading.remove(index);
+		worker.document = loadingDocuments.remove(index);
+		loaded.remove(index).run();
+	}
+
+	/**
+	 * Completes the waiting loads in their order, including
+	 * the loads started while completing them.
+	 */
+	public void completeAll() {
+		while (!loading.isEmpty()) {
+			complete(0);
+		}
+	}
+}
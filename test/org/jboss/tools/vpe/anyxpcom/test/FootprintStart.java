@@ -0,0 +1,147 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.browser.ProgressAdapter;
+import org.eclipse.swt.browser.ProgressEvent;
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.jboss.tools.vpe.anyxpcom.AnyXPCOM;
+import org.jboss.tools.vpe.anyxpcom.BrowserContext;
+import org.jboss.tools.vpe.anyxpcom.NsiProxy;
+import org.mozilla.interfaces.nsIDOMNode;
+
+/**
+ * Measures the heap taken by proxies of DOM nodes, in the default
+ * and the compact handle modes. Then compares the handler of a proxy
+ * with the handler it had before its handle was packed.
+ */
+public class FootprintStart {
+	private static final int COUNT = 100000;
+
+	public static void main(String[] args) {
+		Display display = new Display();
+		final Shell shell = new Shell(display);
+		shell.setLayout(new FillLayout());
+		final Browser browser;
+		try {
+			browser = new Browser(shell, SWT.NONE);
+		} catch (SWTError e) {
+			System.out.println("Could not instantiate Browser: " + e.getMessage());
+			display.dispose();
+			return;
+		}
+		shell.open();
+		browser.addProgressListener(new ProgressAdapter() {
+			@Override
+			public void completed(ProgressEvent event) {
+				measure(browser, COUNT);
+				shell.close();
+			}
+		});
+		browser.setText("<html><body></body></html>");
+
+		while (!shell.isDisposed()) {
+			if (!display.readAndDispatch()) display.sleep();
+		}
+		display.dispose();
+	}
+
+	/**
+	 * Holds proxies of {@code count} nodes in every mode,
+	 * and prints the heap taken per proxy.
+	 */
+	public static void measure(Browser browser, int count) {
+		AnyXPCOM.initBrowser(browser);
+		browser.execute("window.nodes = [];" +
+				"for (var i = 0; i < " + count + "; i++) {" +
+					"nodes.push(document.createElement('div'));" +
+				"}");
+		BrowserContext context = AnyXPCOM.getContext(browser);
+		boolean[] modes = {false, true};
+		for (boolean compact : modes) {
+			context.setCompactHandles(compact);
+			System.out.println((compact ? "compact" : "default") + " mode: "
+					+ measureProxies(browser) + " bytes per proxy");
+		}
+		browser.execute("delete window.nodes;");
+
+		System.out.println("handler before: " + measureHandlers(browser, count, true)
+				+ " bytes, fields: " + getFields(LegacyHandler.class));
+		System.out.println("handler now:    " + measureHandlers(browser, count, false)
+				+ " bytes, fields: " + getFields(NsiProxy.class));
+	}
+
+	private static long measureProxies(Browser browser) {
+		// warm up, so that classes and caches are not counted, and
+		// let the ids of collected proxies be released
+		usedMemory();
+		AnyXPCOM.queryInterface("nodes.slice(0, 10)", nsIDOMNode[].class, browser);
+		long before = usedMemory();
+		nsIDOMNode[] proxies = AnyXPCOM.queryInterface("nodes", nsIDOMNode[].class, browser);
+		long after = usedMemory();
+		return (after - before) / proxies.length;
+	}
+
+	/**
+	 * Returns the heap taken by a handler, either the current one or
+	 * the {@link LegacyHandler} (without the objects shared by handlers).
+	 */
+	private static long measureHandlers(Browser browser, int count, boolean legacy) {
+		Object[] handlers = new Object[count];
+		long before = usedMemory();
+		for (int i = 0; i < count; i++) {
+			handlers[i] = legacy ? new LegacyHandler(browser, i) : new NsiProxy(browser, i);
+		}
+		long after = usedMemory();
+		return handlers[0] == null ? 0 : (after - before) / count;
+	}
+
+	private static String getFields(Class<?> type) {
+		StringBuilder fields = new StringBuilder();
+		for (Field field : type.getDeclaredFields()) {
+			if (!Modifier.isStatic(field.getModifiers())) {
+				if (fields.length() > 0) {
+					fields.append(", ");
+				}
+				fields.append(field.getType().getSimpleName()).append(' ').append(field.getName());
+			}
+		}
+		return fields.toString();
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * The fields NsiProxy had before its handle was packed
+	 * into a {@code long}.
+	 */
+	@SuppressWarnings("unused")
+	private static final class LegacyHandler {
+		Browser browser;
+		int nsiId;
+		int epoch;
+		Class<?> type;
+		Object proxy;
+		LegacyHandler parent;
+		String member;
+		String rootExpression;
+
+		LegacyHandler(Browser browser, int nsiId) {
+			this.browser = browser;
+			this.nsiId = nsiId;
+			this.type = nsIDOMNode.class;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.browser.ProgressAdapter;
+import org.eclipse.swt.browser.ProgressEvent;
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.jboss.tools.vpe.anyxpcom.AnyXPCOM;
+import org.mozilla.interfaces.nsIDOMNode;
+
+/**
+ * Checks that an id evicted from the bounded handle table while the
+ * results of a script are converted, and met again in the same results,
+ * is not released: its new proxy keeps referring to the same object,
+ * even when another object is registered after it. Then checks that
+ * proxies of an object fetched before and after the eviction of its id
+ * are equal and have the same hash code.
+ */
+public class HandleEvictionStart {
+	public static void main(String[] args) {
+		Display display = new Display();
+		final Shell shell = new Shell(display);
+		shell.setLayout(new FillLayout());
+		final Browser browser;
+		try {
+			browser = new Browser(shell, SWT.NONE);
+		} catch (SWTError e) {
+			System.out.println("Could not instantiate Browser: " + e.getMessage());
+			display.dispose();
+			return;
+		}
+		shell.open();
+		browser.addProgressListener(new ProgressAdapter() {
+			@Override
+			public void completed(ProgressEvent event) {
+				check(browser);
+				shell.close();
+			}
+		});
+		browser.setText("<html><body><p>text</p></body></html>");
+
+		while (!shell.isDisposed()) {
+			if (!display.readAndDispatch()) display.sleep();
+		}
+		display.dispose();
+	}
+
+	private static void check(Browser browser) {
+		AnyXPCOM.initBrowser(browser);
+		AnyXPCOM.getContext(browser).setMaxHandles(1);
+		nsIDOMNode body = AnyXPCOM.queryInterface("document.body", nsIDOMNode.class, browser);
+		int hash = body.hashCode();
+
+		// the first element evicts the id of the body, the second one fetches it again
+		nsIDOMNode[] nodes = AnyXPCOM.queryInterface(
+				"[document.documentElement, document.body]", nsIDOMNode[].class, browser);
+		// takes the slot of the body if its id has been released
+		AnyXPCOM.queryInterface("document.createElement('div')", nsIDOMNode.class, browser);
+
+		String fetched = nodes[1].getNodeName();
+		String evicted = body.getNodeName();
+		System.out.println("fetched again: " + fetched + ", evicted: " + evicted
+				+ ("BODY".equalsIgnoreCase(fetched) && "BODY".equalsIgnoreCase(evicted)
+						? " - OK" : " - FAILED, BODY expected"));
+		boolean equal = body.equals(nodes[1]) && nodes[1].equals(body);
+		boolean sameHash = body.hashCode() == hash && nodes[1].hashCode() == hash;
+		System.out.println("equal: " + equal + ", same hash codes: " + sameHash
+				+ (equal && sameHash ? " - OK" : " - FAILED"));
+
+		String expression = "document.getElementsByTagName('p')[0]";
+		nsIDOMNode paragraph = AnyXPCOM.queryInterface(expression, nsIDOMNode.class, browser);
+		hash = paragraph.hashCode();
+		// evicts the id of the paragraph, the eviction is sent with the next script
+		AnyXPCOM.queryInterface("document.createTextNode('text')", nsIDOMNode.class, browser);
+		// takes the slot of the paragraph if its id has been released
+		AnyXPCOM.queryInterface("document.createElement('span')", nsIDOMNode.class, browser);
+		nsIDOMNode fetchedParagraph = AnyXPCOM.queryInterface(expression, nsIDOMNode.class, browser);
+		equal = paragraph.equals(fetchedParagraph) && fetchedParagraph.equals(paragraph);
+		sameHash = paragraph.hashCode() == hash && fetchedParagraph.hashCode() == hash;
+		System.out.println("after the eviction, equal: " + equal + ", same hash codes: "
+				+ sameHash + (equal && sameHash ? " - OK" : " - FAILED"));
+	}
+}
@@ -0,0 +1,63 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.browser.ProgressAdapter;
+import org.eclipse.swt.browser.ProgressEvent;
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.jboss.tools.vpe.anyxpcom.AnyXPCOM;
+import org.mozilla.interfaces.nsIDOMNode;
+
+/**
+ * Checks that with JSON results enabled, handles are converted to
+ * proxies, and a string looking like a handle of the legacy encoding
+ * stays a string.
+ */
+public class JsonResultsStart {
+	public static void main(String[] args) {
+		Display display = new Display();
+		final Shell shell = new Shell(display);
+		shell.setLayout(new FillLayout());
+		final Browser browser;
+		try {
+			browser = new Browser(shell, SWT.NONE);
+		} catch (SWTError e) {
+			System.out.println("Could not instantiate Browser: " + e.getMessage());
+			display.dispose();
+			return;
+		}
+		shell.open();
+		browser.addProgressListener(new ProgressAdapter() {
+			@Override
+			public void completed(ProgressEvent event) {
+				check(browser);
+				shell.close();
+			}
+		});
+		browser.setText("<html><body></body></html>");
+
+		while (!shell.isDisposed()) {
+			if (!display.readAndDispatch()) display.sleep();
+		}
+		display.dispose();
+	}
+
+	private static void check(Browser browser) {
+		AnyXPCOM.initBrowser(browser);
+		AnyXPCOM.getContext(browser).setJsonResults(true);
+		nsIDOMNode body = AnyXPCOM.queryInterface("document.body", nsIDOMNode.class, browser);
+		String name = body.getNodeName();
+		System.out.println("handle converted to: " + name
+				+ ("BODY".equalsIgnoreCase(name) ? " - OK" : " - FAILED, BODY expected"));
+
+		Object[] values = AnyXPCOM.queryInterface("['nsiId=0', document.body]", Object[].class, browser);
+		Object string = AnyXPCOM.convertFromNsi(values[0], nsIDOMNode.class, browser);
+		Object handle = AnyXPCOM.convertFromNsi(values[1], nsIDOMNode.class, browser);
+		boolean ok = "nsiId=0".equals(string) && body.equals(handle);
+		System.out.println("string converted to: " + string + ", handle to: " + handle
+				+ (ok ? " - OK" : " - FAILED"));
+	}
+}
@@ -0,0 +1,89 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.browser.ProgressAdapter;
+import org.eclipse.swt.browser.ProgressEvent;
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.jboss.tools.vpe.anyxpcom.AnyXPCOM;
+import org.jboss.tools.vpe.anyxpcom.NsiList;
+import org.mozilla.interfaces.nsIDOMNode;
+
+/**
+ * Queries a big collection by {@link AnyXPCOM#queryList(String, Class, Browser)}
+ * and checks that its elements are registered in {@code nsiArray} only
+ * when they are accessed, and that the list gives the right elements.
+ */
+public class NsiListStart {
+	private static final int PARAGRAPHS = 1000;
+	/* elements registered at once by a list */
+	private static final int CHUNK = 64;
+
+	public static void main(String[] args) {
+		Display display = new Display();
+		final Shell shell = new Shell(display);
+		shell.setLayout(new FillLayout());
+		final Browser browser;
+		try {
+			browser = new Browser(shell, SWT.NONE);
+		} catch (SWTError e) {
+			System.out.println("Could not instantiate Browser: " + e.getMessage());
+			display.dispose();
+			return;
+		}
+		shell.open();
+		browser.addProgressListener(new ProgressAdapter() {
+			@Override
+			public void completed(ProgressEvent event) {
+				check(browser);
+				shell.close();
+			}
+		});
+		StringBuilder html = new StringBuilder("<html><body>");
+		for (int i = 0; i < PARAGRAPHS; i++) {
+			html.append("<p>").append(i).append("</p>");
+		}
+		browser.setText(html.append("</body></html>").toString());
+
+		while (!shell.isDisposed()) {
+			if (!display.readAndDispatch()) display.sleep();
+		}
+		display.dispose();
+	}
+
+	private static void check(Browser browser) {
+		AnyXPCOM.initBrowser(browser);
+		int before = registered(browser);
+		NsiList<nsIDOMNode> list = AnyXPCOM.queryList(
+				"document.getElementsByTagName('p')", nsIDOMNode.class, browser);
+		int queried = registered(browser) - before;
+		System.out.println("size: " + list.size() + ", registered by the query: " + queried
+				+ (list.size() == PARAGRAPHS && queried == 1 ? " - OK" : " - FAILED"));
+
+		int index = PARAGRAPHS / 2;
+		String text = list.get(index).getFirstChild().getNodeValue();
+		int accessed = registered(browser) - before - queried;
+		boolean ok = String.valueOf(index).equals(text) && list.isRegistered(index)
+				&& !list.isRegistered(0) && accessed <= CHUNK + 1; // and the text node
+		System.out.println("element " + index + ": " + text + ", registered by the access: "
+				+ accessed + (ok ? " - OK" : " - FAILED"));
+
+		NsiList<nsIDOMNode> mixed = AnyXPCOM.queryList(
+				"[document.body, 1, null]", nsIDOMNode.class, browser);
+		ok = "BODY".equalsIgnoreCase(mixed.get(0).getNodeName())
+				&& mixed.get(1) == null && mixed.get(2) == null;
+		System.out.println("objects and primitives: " + mixed.get(0).getNodeName() + ", "
+				+ mixed.get(1) + ", " + mixed.get(2) + (ok ? " - OK" : " - FAILED"));
+	}
+
+	/**
+	 * Returns the number of slots of {@code nsiArray} in use.
+	 */
+	private static int registered(Browser browser) {
+		return ((Number) browser.evaluate(
+				"return nsiArray.length - nsiFree.length")).intValue();
+	}
+}
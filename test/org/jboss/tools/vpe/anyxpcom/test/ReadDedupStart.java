@@ -0,0 +1,70 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.browser.ProgressAdapter;
+import org.eclipse.swt.browser.ProgressEvent;
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.jboss.tools.vpe.anyxpcom.AnyXPCOM;
+import org.jboss.tools.vpe.anyxpcom.BrowserContext;
+import org.mozilla.interfaces.nsIDOMNode;
+
+/**
+ * Checks that reads shared by read deduplication are dropped when
+ * a script changes the document outside of proxies: by
+ * {@link AnyXPCOM#execute(String, Browser)}, or by the browser directly
+ * followed by {@link BrowserContext#invalidateReads()}.
+ */
+public class ReadDedupStart {
+	public static void main(String[] args) {
+		Display display = new Display();
+		final Shell shell = new Shell(display);
+		shell.setLayout(new FillLayout());
+		final Browser browser;
+		try {
+			browser = new Browser(shell, SWT.NONE);
+		} catch (SWTError e) {
+			System.out.println("Could not instantiate Browser: " + e.getMessage());
+			display.dispose();
+			return;
+		}
+		shell.open();
+		browser.addProgressListener(new ProgressAdapter() {
+			@Override
+			public void completed(ProgressEvent event) {
+				check(browser);
+				shell.close();
+			}
+		});
+		browser.setText("<html><body><p>text</p></body></html>");
+
+		while (!shell.isDisposed()) {
+			if (!display.readAndDispatch()) display.sleep();
+		}
+		display.dispose();
+	}
+
+	private static void check(Browser browser) {
+		AnyXPCOM.initBrowser(browser);
+		BrowserContext context = AnyXPCOM.getContext(browser);
+		context.setReadDedup(true);
+		nsIDOMNode text = AnyXPCOM.queryInterface(
+				"document.getElementsByTagName('p')[0].firstChild", nsIDOMNode.class, browser);
+		String before = text.getNodeValue();
+
+		AnyXPCOM.execute("document.getElementsByTagName('p')[0].firstChild.nodeValue = 'executed'",
+				browser);
+		String executed = text.getNodeValue();
+		System.out.println("before: " + before + ", after AnyXPCOM.execute: " + executed
+				+ ("executed".equals(executed) ? " - OK" : " - FAILED"));
+
+		browser.execute("document.getElementsByTagName('p')[0].firstChild.nodeValue = 'direct'");
+		context.invalidateReads();
+		String direct = text.getNodeValue();
+		System.out.println("after Browser.execute and invalidateReads: " + direct
+				+ ("direct".equals(direct) ? " - OK" : " - FAILED"));
+	}
+}
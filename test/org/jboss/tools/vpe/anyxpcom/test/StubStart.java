@@ -0,0 +1,134 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.browser.Browser;
+import org.eclipse.swt.browser.ProgressAdapter;
+import org.eclipse.swt.browser.ProgressEvent;
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+import org.jboss.tools.vpe.anyxpcom.AnyXPCOM;
+import org.jboss.tools.vpe.anyxpcom.StubGenerator;
+import org.mozilla.interfaces.nsIDOMNode;
+
+/**
+ * Generates the stub of {@link nsIDOMNode} by {@link StubGenerator},
+ * compiles it next to the classes of AnyXPCOM, and checks that proxies
+ * of the interface are created as stubs and that calls through them
+ * give the expected results. The compiled stub
+ * is deleted at the end, so other runs are not affected.
+ */
+public class StubStart {
+	private static final String STUB_CLASS = "org_mozilla_interfaces_nsIDOMNodeStub";
+
+	public static void main(String[] args) throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		File classes = new File(
+				AnyXPCOM.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		if (compiler == null || !classes.isDirectory()) {
+			System.out.println("Could not compile the stub: "
+					+ (compiler == null ? "no Java compiler" : classes + " is not a folder"));
+			return;
+		}
+
+		File sources = File.createTempFile("stubs", "");
+		sources.delete();
+		sources.mkdirs();
+		String packagePath = AnyXPCOM.class.getPackage().getName().replace('.', File.separatorChar);
+		List<File> compiled = new ArrayList<File>();
+		try {
+			StubGenerator.generate(nsIDOMNode.class, sources);
+			File source = new File(sources, packagePath + File.separatorChar + STUB_CLASS + ".java");
+			int status = compiler.run(null, null, null, "-nowarn",
+					"-cp", System.getProperty("java.class.path"),
+					"-d", classes.getPath(), source.getPath());
+			for (File file : new File(classes, packagePath).listFiles()) {
+				if (file.getName().startsWith(STUB_CLASS)) {
+					compiled.add(file);
+				}
+			}
+			if (status != 0) {
+				System.out.println("Could not compile " + source + " - FAILED");
+				return;
+			}
+			run();
+		} finally {
+			for (File file : compiled) {
+				file.delete();
+			}
+			delete(sources);
+		}
+	}
+
+	private static void run() {
+		Display display = new Display();
+		final Shell shell = new Shell(display);
+		shell.setLayout(new FillLayout());
+		final Browser browser;
+		try {
+			browser = new Browser(shell, SWT.NONE);
+		} catch (SWTError e) {
+			System.out.println("Could not instantiate Browser: " + e.getMessage());
+			display.dispose();
+			return;
+		}
+		shell.open();
+		browser.addProgressListener(new ProgressAdapter() {
+			@Override
+			public void completed(ProgressEvent event) {
+				check(browser);
+				shell.close();
+			}
+		});
+		browser.setText("<html><body><p>text</p></body></html>");
+
+		while (!shell.isDisposed()) {
+			if (!display.readAndDispatch()) display.sleep();
+		}
+		display.dispose();
+	}
+
+	private static void check(Browser browser) {
+		AnyXPCOM.initBrowser(browser);
+		String expression = "document.getElementsByTagName('p')[0]";
+		nsIDOMNode paragraph = AnyXPCOM.queryInterface(expression, nsIDOMNode.class, browser);
+		boolean stub = paragraph.getClass().getSimpleName().equals(STUB_CLASS)
+				&& !Proxy.isProxyClass(paragraph.getClass());
+		System.out.println("created as: " + paragraph.getClass().getName()
+				+ (stub ? " - OK" : " - FAILED, the stub expected"));
+
+		String name = paragraph.getNodeName();
+		String text = paragraph.getFirstChild().getNodeValue();
+		boolean children = paragraph.hasChildNodes();
+		boolean parent = paragraph.getParentNode().equals(
+				AnyXPCOM.queryInterface("document.body", nsIDOMNode.class, browser));
+		System.out.println("name: " + name + ", text: " + text + ", children: " + children
+				+ ", parent is the body: " + parent
+				+ ("P".equalsIgnoreCase(name) && "text".equals(text) && children && parent
+						? " - OK" : " - FAILED"));
+
+		nsIDOMNode fetched = AnyXPCOM.queryInterface(expression, nsIDOMNode.class, browser);
+		boolean equal = paragraph.equals(fetched) && fetched.equals(paragraph)
+				&& paragraph.hashCode() == fetched.hashCode();
+		System.out.println("fetched again, equal: " + equal + (equal ? " - OK" : " - FAILED"));
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,180 @@
+package org.jboss.tools.vpe.anyxpcom.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.jboss.tools.vpe.anyxpcom.BridgeFuture;
+import org.jboss.tools.vpe.anyxpcom.BrowserPool;
+import org.jboss.tools.vpe.anyxpcom.XPCOM;
+import org.mozilla.xpcom.XPCOMException;
+
+/**
+ * Drives a {@link BrowserPool} of {@link FakeWorkerFactory fake workers}
+ * through batches of documents, and checks the order of the processing,
+ * the pipelining of loads, failures of loads and of the processor, and
+ * disposing of the pool during a run. No display is needed.
+ */
+public class WorkerPoolStart {
+	private static final int SIZE = 3;
+
+	public static void main(String[] args) throws Exception {
+		checkOrder();
+		checkPipelining();
+		checkFailures();
+		checkDisposal();
+	}
+
+	/**
+	 * Loads completing at once deliver the documents from inside
+	 * the delivery, which must not recurse per document.
+	 */
+	private static void checkOrder() throws Exception {
+		FakeWorkerFactory factory = new FakeWorkerFactory(false);
+		BrowserPool<FakeWorkerFactory.Worker> pool
+				= new BrowserPool<FakeWorkerFactory.Worker>(factory, SIZE);
+		List<String> documents = documents("doc", 10000);
+		Recorder recorder = new Recorder();
+		BridgeFuture<Integer> result = pool.process(documents.iterator(), recorder);
+		boolean ok = result.isDone() && result.get() == documents.size()
+				&& recorder.processed.equals(documents) && pool.getIdleCount() == SIZE;
+		System.out.println("synchronous loads, processed: " + result.get() + " of " + documents.size()
+				+ ", in order: " + recorder.processed.equals(documents)
+				+ ", idle: " + pool.getIdleCount() + (ok ? " - OK" : " - FAILED"));
+		pool.dispose();
+	}
+
+	/**
+	 * At most one load per worker runs at once, and documents are
+	 * processed in the order their loads complete.
+	 */
+	private static void checkPipelining() throws Exception {
+		FakeWorkerFactory factory = new FakeWorkerFactory(true);
+		BrowserPool<FakeWorkerFactory.Worker> pool
+				= new BrowserPool<FakeWorkerFactory.Worker>(factory, SIZE);
+		factory.completeAll(); // about:blank
+		List<String> documents = documents("doc", 10);
+		Recorder recorder = new Recorder();
+		BridgeFuture<Integer> result = pool.process(documents.iterator(), recorder);
+		List<String> completed = new ArrayList<String>();
+		int maxLoading = 0;
+		while (factory.getLoadingCount() > 0) {
+			maxLoading = Math.max(maxLoading, factory.getLoadingCount());
+			int last = factory.getLoadingCount() - 1;
+			completed.add(factory.getLoadingDocument(last));
+			factory.complete(last);
+		}
+		boolean ok = result.isDone() && result.get() == documents.size()
+				&& maxLoading == SIZE && recorder.processed.equals(completed)
+				&& new HashSet<String>(completed).equals(new HashSet<String>(documents));
+		System.out.println("deferred loads, processed: " + result.get() + " of " + documents.size()
+				+ ", loading at most: " + maxLoading + " of " + SIZE
+				+ ", in the order of completion: " + recorder.processed.equals(completed)
+				+ (ok ? " - OK" : " - FAILED"));
+		pool.dispose();
+	}
+
+	/**
+	 * A load that cannot be started fails the run through
+	 * {@link BrowserPool.Callback#failed}, and so does a failure of the
+	 * processor. The workers stay in the pool and process the next run.
+	 */
+	private static void checkFailures() throws Exception {
+		FakeWorkerFactory factory = new FakeWorkerFactory(false);
+		BrowserPool<FakeWorkerFactory.Worker> pool
+				= new BrowserPool<FakeWorkerFactory.Worker>(factory, SIZE);
+		List<String> documents = documents("doc", 10);
+		documents.set(5, FakeWorkerFactory.FAILING_PREFIX + 5);
+		Recorder recorder = new Recorder();
+		BridgeFuture<Integer> result = pool.process(documents.iterator(), recorder);
+		Throwable failure = getFailure(result);
+		boolean ok = failure instanceof IllegalArgumentException
+				&& !recorder.processed.contains(documents.get(6)) && pool.getIdleCount() == SIZE;
+		System.out.println("failed load: " + failure + ", processed: " + recorder.processed.size()
+				+ ", idle: " + pool.getIdleCount() + (ok ? " - OK" : " - FAILED"));
+
+		final RuntimeException processorFailure = new IllegalStateException("processor failure");
+		result = pool.process(documents("doc", 10).iterator(),
+				new BrowserPool.Processor<FakeWorkerFactory.Worker>() {
+			public void process(BrowserPool.Lease<FakeWorkerFactory.Worker> lease) {
+				throw processorFailure;
+			}
+		});
+		failure = getFailure(result);
+		ok = failure == processorFailure && pool.getIdleCount() == SIZE;
+		System.out.println("failed processor: " + failure + ", idle: " + pool.getIdleCount()
+				+ (ok ? " - OK" : " - FAILED"));
+
+		documents = documents("next", 10);
+		recorder = new Recorder();
+		result = pool.process(documents.iterator(), recorder);
+		ok = result.isDone() && recorder.processed.equals(documents);
+		System.out.println("next run processed: " + result.get() + (ok ? " - OK" : " - FAILED"));
+		pool.dispose();
+	}
+
+	/**
+	 * Disposing of the pool fails the unfinished run with
+	 * {@link XPCOM#NS_ERROR_ABORT}, and loads completing after that
+	 * are not processed.
+	 */
+	private static void checkDisposal() throws Exception {
+		FakeWorkerFactory factory = new FakeWorkerFactory(true);
+		BrowserPool<FakeWorkerFactory.Worker> pool
+				= new BrowserPool<FakeWorkerFactory.Worker>(factory, SIZE);
+		factory.completeAll(); // about:blank
+		Recorder recorder = new Recorder();
+		BridgeFuture<Integer> result = pool.process(documents("doc", 10).iterator(), recorder);
+		factory.complete(0);
+		pool.dispose();
+		factory.completeAll();
+
+		Throwable failure = getFailure(result);
+		boolean aborted = failure instanceof XPCOMException
+				&& ((XPCOMException) failure).errorcode == XPCOM.NS_ERROR_ABORT;
+		boolean disposed = true;
+		for (FakeWorkerFactory.Worker worker : factory.getWorkers()) {
+			disposed &= worker.isDisposed();
+		}
+		boolean ok = aborted && disposed && recorder.processed.size() == 1;
+		System.out.println("disposed during the run: " + failure
+				+ ", processed: " + recorder.processed.size() + ", workers disposed: " + disposed
+				+ (ok ? " - OK" : " - FAILED, NS_ERROR_ABORT expected"));
+	}
+
+	private static List<String> documents(String prefix, int count) {
+		List<String> documents = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			documents.add(prefix + i);
+		}
+		return documents;
+	}
+
+	private static Throwable getFailure(BridgeFuture<Integer> result) throws InterruptedException {
+		if (!result.isDone()) {
+			return null;
+		}
+		try {
+			result.get();
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+	/**
+	 * Records the documents loaded into the leased workers.
+	 */
+	private static final class Recorder implements BrowserPool.Processor<FakeWorkerFactory.Worker> {
+		final List<String> processed = new ArrayList<String>();
+
+		public void process(BrowserPool.Lease<FakeWorkerFactory.Worker> lease) {
+			if (!lease.getDocument().equals(lease.getWorker().getDocument())) {
+				throw new IllegalStateException(lease.getDocument() + " is not loaded into "
+						+ lease.getWorker());
+			}
+			processed.add(lease.getDocument());
+		}
+	}
+}
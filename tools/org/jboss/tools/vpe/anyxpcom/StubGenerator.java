@@ -0,0 +1,258 @@
+package org.jboss.tools.vpe.anyxpcom;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.mozilla.interfaces.nsISupports;
+
+/**
+ * Generates stubs of interfaces, which are used by {@link AnyXPCOM}
+ * instead of dynamic proxies when they are on the classpath.
+ * Every method of a stub has the JS member and the result converter
+ * resolved at the class initialization, and appends primitive arguments
+ * without boxing (unless the call is dispatched from another thread).
+ * <P>
+ * The generator is a build tool, and is not a part of the bundle. It is
+ * run with the {@code tools} and {@code src} folders compiled together
+ * and the interfaces on the classpath:
+ * <pre>java org.jboss.tools.vpe.anyxpcom.StubGenerator src-gen org.mozilla.interfaces.nsIDOMNode ...</pre>
+ * Instead of interface names, a jar may be given: then stubs are generated
+ * for all interfaces of the {@code org.mozilla.interfaces} package in it.
+ * The output folder ({@code src-gen} above) has to be added to
+ * {@code source..} in {@code build.properties}. Stubs are named after
+ * the fully qualified names of their interfaces (see
+ * {@link NsiStub#getStubName(Class)}), so interfaces of the same simple
+ * name from different packages get different stubs.
+ */
+public final class StubGenerator {
+	private static final String INTERFACES_PATH = "org/mozilla/interfaces/";
+
+	private StubGenerator() {}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			throw new IllegalArgumentException(
+					"Usage: StubGenerator <output dir> (<interface>|<jar>)...");
+		}
+		File outputDir = new File(args[0]);
+		List<Class<?>> types = new ArrayList<Class<?>>();
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].endsWith(".jar")) {
+				types.addAll(getInterfaces(new File(args[i])));
+			} else {
+				types.add(Class.forName(args[i]));
+			}
+		}
+		for (Class<?> type : types) {
+			generate(type, outputDir);
+		}
+		System.out.println(types.size() + " stubs generated");
+	}
+
+	/**
+	 * Writes the source of the stub of the {@code type}
+	 * to the {@code outputDir}.
+	 */
+	public static void generate(Class<?> type, File outputDir) throws IOException {
+		String stubName = NsiStub.getStubName(type);
+		File file = new File(outputDir, stubName.replace('.', File.separatorChar) + ".java");
+		file.getParentFile().mkdirs();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(generateSource(type));
+		} finally {
+			writer.close();
+		}
+	}
+
+	static String generateSource(Class<?> type) {
+		String stubName = NsiStub.getStubName(type);
+		String simpleName = stubName.substring(NsiStub.class.getPackage().getName().length() + 1);
+		StringBuilder fields = new StringBuilder();
+		StringBuilder methods = new StringBuilder();
+
+		Set<String> signatures = new HashSet<String>();
+		int index = 0;
+		for (Method method : type.getMethods()) {
+			if (!signatures.add(getSignature(method))) {
+				continue;
+			}
+			CallSite callSite = CallSite.create(method);
+			if (callSite.kind != CallSite.Kind.GETTER && callSite.kind != CallSite.Kind.METHOD) {
+				continue; // implemented by NsiStub
+			}
+			String site = method.getName() + index++;
+			appendCallSite(fields, site, callSite);
+			appendMethod(methods, site, method, callSite);
+		}
+
+		StringBuilder source = new StringBuilder();
+		source.append("// Generated by ").append(StubGenerator.class.getName())
+				.append(" from ").append(type.getName()).append(", do not edit.\n")
+				.append("package ").append(NsiStub.class.getPackage().getName()).append(";\n\n")
+				.append("final class ").append(simpleName).append(" extends NsiStub implements ")
+				.append(type.getCanonicalName()).append(" {\n")
+				.append(fields).append('\n')
+				.append('\t').append(simpleName).append("(NsiProxy handler) {\n")
+				.append("\t\tsuper(handler);\n")
+				.append("\t}\n")
+				.append(methods)
+				.append("}\n");
+		return source.toString();
+	}
+
+	private static void appendCallSite(StringBuilder fields, String site, CallSite callSite) {
+		fields.append("\tprivate static final CallSite ").append(site).append(" = CallSite.");
+		if (callSite.kind == CallSite.Kind.GETTER) {
+			fields.append("getter(\"").append(callSite.member).append("\", ")
+					.append(callSite.returnType.getCanonicalName()).append(".class);\n");
+		} else {
+			fields.append("method(\"").append(callSite.member).append("\", ")
+					.append(callSite.returnType.getCanonicalName()).append(".class, ")
+					.append(callSite.isRepeatable).append(");\n");
+		}
+	}
+
+	private static void appendMethod(StringBuilder methods, String site,
+			Method method, CallSite callSite) {
+		Class<?> returnType = method.getReturnType();
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		methods.append("\n\tpublic ").append(returnType.getCanonicalName()).append(' ')
+				.append(method.getName()).append('(');
+		for (int i = 0; i < parameterTypes.length; i++) {
+			if (i > 0) {
+				methods.append(", ");
+			}
+			methods.append(parameterTypes[i].getCanonicalName()).append(" arg").append(i);
+		}
+		methods.append(')');
+		Class<?>[] exceptionTypes = method.getExceptionTypes();
+		for (int i = 0; i < exceptionTypes.length; i++) {
+			methods.append(i == 0 ? " throws " : ", ").append(exceptionTypes[i].getCanonicalName());
+		}
+		methods.append(" {\n");
+
+		String invocation;
+		if (callSite.kind == CallSite.Kind.GETTER) {
+			invocation = "handler.get(" + site + ")";
+		} else {
+			methods.append("\t\tStringBuilder call = handler.beginCall(").append(site).append(");\n")
+					.append("\t\tif (call == null) {\n")
+					.append("\t\t\t");
+			if (returnType != void.class) {
+				methods.append("return (").append(getBoxedName(returnType)).append(") ");
+			}
+			methods.append("handler.dispatch(").append(site).append(", ");
+			if (parameterTypes.length == 0) {
+				methods.append("null");
+			} else {
+				methods.append("new Object[] {");
+				for (int i = 0; i < parameterTypes.length; i++) {
+					methods.append(i == 0 ? "" : ", ").append("arg").append(i);
+				}
+				methods.append('}');
+			}
+			methods.append(");\n");
+			if (returnType == void.class) {
+				methods.append("\t\t\treturn;\n");
+			}
+			methods.append("\t\t}\n");
+			for (int i = 0; i < parameterTypes.length; i++) {
+				if (i > 0) {
+					methods.append("\t\tcall.append(',');\n");
+				}
+				Class<?> parameterType = parameterTypes[i];
+				if (parameterType == boolean.class) {
+					methods.append("\t\tcall.append(arg").append(i).append(");\n");
+				} else if (parameterType == double.class || parameterType == float.class) {
+					methods.append("\t\tArgEncoder.appendNumber(call, arg").append(i).append(");\n");
+				} else if (parameterType == char.class) {
+					methods.append("\t\tArgEncoder.appendChar(call, arg").append(i).append(");\n");
+				} else if (parameterType.isPrimitive()) {
+					methods.append("\t\tcall.append(arg").append(i).append(");\n");
+				} else {
+					methods.append("\t\thandler.appendArg(call, arg").append(i).append(");\n");
+				}
+			}
+			invocation = "handler.endCall(" + site + ", call)";
+		}
+
+		if (returnType == void.class) {
+			methods.append("\t\t").append(invocation).append(";\n");
+		} else {
+			methods.append("\t\treturn (").append(getBoxedName(returnType)).append(") ")
+					.append(invocation).append(";\n");
+		}
+		methods.append("\t}\n");
+	}
+
+	private static String getSignature(Method method) {
+		StringBuilder signature = new StringBuilder(method.getName()).append('(');
+		for (Class<?> parameterType : method.getParameterTypes()) {
+			signature.append(parameterType.getName()).append(';');
+		}
+		return signature.toString();
+	}
+
+	private static String getBoxedName(Class<?> type) {
+		if (type == boolean.class) {
+			return "Boolean";
+		} else if (type == char.class) {
+			return "Character";
+		} else if (type == byte.class) {
+			return "Byte";
+		} else if (type == short.class) {
+			return "Short";
+		} else if (type == int.class) {
+			return "Integer";
+		} else if (type == long.class) {
+			return "Long";
+		} else if (type == float.class) {
+			return "Float";
+		} else if (type == double.class) {
+			return "Double";
+		}
+		return type.getCanonicalName();
+	}
+
+	private static List<Class<?>> getInterfaces(File jar) throws IOException {
+		List<Class<?>> interfaces = new ArrayList<Class<?>>();
+		JarFile jarFile = new JarFile(jar);
+		try {
+			Enumeration<JarEntry> entries = jarFile.entries();
+			while (entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				if (name.startsWith(INTERFACES_PATH) && name.endsWith(".class")
+						&& name.indexOf('$') < 0
+						&& name.indexOf('/', INTERFACES_PATH.length()) < 0) {
+					String className = name.substring(0, name.length() - 6).replace('/', '.');
+					try {
+						Class<?> type = Class.forName(className, false,
+								StubGenerator.class.getClassLoader());
+						if (type.isInterface() && Modifier.isPublic(type.getModifiers())
+								&& nsISupports.class.isAssignableFrom(type)) {
+							interfaces.add(type);
+						}
+					} catch (ClassNotFoundException e) {
+						System.err.println("Skipped " + className + ": " + e);
+					}
+				}
+			}
+		} finally {
+			jarFile.close();
+		}
+		return interfaces;
+	}
+}